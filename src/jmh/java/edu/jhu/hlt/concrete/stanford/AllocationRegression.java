@@ -0,0 +1,164 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+import edu.jhu.hlt.concrete.Concrete.Section;
+import edu.jhu.hlt.concrete.Concrete.Sentence;
+
+/**
+ * Checks that the per-sentence path doesn't allocate more than it used to:
+ * runs the tokenize and (direct, default) conversion benchmarks of
+ * PipelineBenchmark with the JMH gc profiler, divides gc.alloc.rate.norm
+ * (bytes per operation) by the tokens in the sample, and exits with status
+ * 1 if a benchmark allocates more than its recorded baseline plus the
+ * margin.
+ *
+ *   mvn -P jmh package
+ *   java -cp target/benchmarks.jar edu.jhu.hlt.concrete.stanford.AllocationRegression [--calibrate]
+ *
+ * The baseline is measured on the fixed sample of PipelineBenchmark and
+ * kept in small-sample/allocation-baseline.properties (override with
+ * -Dbaseline=path). --calibrate measures it and writes the file; commit
+ * it, with the margin (default 10%, -Dmargin=0.1), when the path gets
+ * leaner or after a deliberate change. A run without a baseline file
+ * records one, like --calibrate, and asks for it to be committed, so the
+ * check guards from the next run on. -Dbudget.BENCHMARK=N sets a budget in
+ * bytes per token directly.
+ */
+public class AllocationRegression {
+
+    static final String[] benchmarks = {"tokenize", "tokenizeOnlyAnnotator", "concreteConverter"};
+    static final double DEFAULT_MARGIN = 0.1;
+
+    public static void main(String[] args) throws Exception {
+	boolean calibrate = args.length == 1 && args[0].equals("--calibrate");
+	if(args.length > 1 || (args.length == 1 && !calibrate)) {
+	    System.err.println("Usage: AllocationRegression [--calibrate]");
+	    System.exit(2);
+	}
+	File baselineFile = new File(System.getProperty("baseline", "small-sample/allocation-baseline.properties"));
+	Properties baseline = new Properties();
+	if(!calibrate && !baselineFile.exists()) {
+	    System.err.println("No allocation baseline in " + baselineFile + " yet: recording this run's");
+	    calibrate = true;
+	}
+	if(!calibrate) {
+	    InputStream in = new FileInputStream(baselineFile);
+	    try {
+		baseline.load(in);
+	    } finally {
+		in.close();
+	    }
+	}
+
+	Map<String, Double> measured = measure(countTokens(PipelineBenchmark.loadSample()));
+	if(calibrate) {
+	    writeBaseline(baselineFile, measured);
+	    System.err.println("Commit " + baselineFile + " so later runs are checked against it");
+	    System.exit(0);
+	}
+	double margin = Double.parseDouble(System.getProperty("margin",
+							      baseline.getProperty("margin", Double.toString(DEFAULT_MARGIN))));
+	boolean failed = false;
+	for(String name : benchmarks) {
+	    Double bytesPerToken = measured.get(name);
+	    double budget = budget(name, baseline, margin);
+	    boolean over = bytesPerToken == null || bytesPerToken > budget;
+	    failed |= over;
+	    System.out.printf("%-24s %8s bytes/token (budget %.1f)%s\n", name,
+			      bytesPerToken == null ? "no result" : String.format("%.1f", bytesPerToken),
+			      budget, over ? "  OVER BUDGET" : "");
+	}
+	System.exit(failed ? 1 : 0);
+    }
+
+    // bytes allocated per token by each benchmark
+    static Map<String, Double> measure(long tokens) throws Exception {
+	StringBuilder include = new StringBuilder();
+	for(String benchmark : benchmarks)
+	    include.append(include.length() == 0 ? "" : "|").append(benchmark);
+	Options options = new OptionsBuilder()
+	    .include(PipelineBenchmark.class.getSimpleName() + "\\.(" + include + ")$")
+	    .addProfiler(GCProfiler.class)
+	    .warmupIterations(2)
+	    .warmupTime(TimeValue.seconds(2))
+	    .measurementIterations(3)
+	    .measurementTime(TimeValue.seconds(2))
+	    .forks(1)
+	    .build();
+	Collection<RunResult> results = new Runner(options).run();
+	Map<String, Double> measured = new LinkedHashMap<String, Double>();
+	for(RunResult result : results) {
+	    String name = result.getParams().getBenchmark();
+	    name = name.substring(name.lastIndexOf('.') + 1);
+	    measured.put(name, allocatedPerOp(result) / tokens);
+	}
+	return measured;
+    }
+
+    static double budget(String benchmark, Properties baseline, double margin) {
+	String direct = System.getProperty("budget." + benchmark);
+	if(direct != null)
+	    return Double.parseDouble(direct);
+	String recorded = baseline.getProperty(benchmark);
+	if(recorded == null)
+	    throw new IllegalStateException("no baseline for " + benchmark + "; record one with --calibrate");
+	return Double.parseDouble(recorded) * (1 + margin);
+    }
+
+    static void writeBaseline(File file, Map<String, Double> measured) throws IOException {
+	Properties baseline = new Properties();
+	for(Map.Entry<String, Double> e : measured.entrySet()) {
+	    baseline.setProperty(e.getKey(), String.format("%.1f", e.getValue()));
+	    System.out.printf("%-24s %8.1f bytes/token\n", e.getKey(), e.getValue());
+	}
+	baseline.setProperty("margin", System.getProperty("margin", Double.toString(DEFAULT_MARGIN)));
+	OutputStream out = new FileOutputStream(file);
+	try {
+	    baseline.store(out, "bytes allocated per token on " + PipelineBenchmark.sampleFile()
+			   + ", measured by AllocationRegression --calibrate with Java "
+			   + System.getProperty("java.version") + "; budget = value * (1 + margin)");
+	} finally {
+	    out.close();
+	}
+	System.out.println("Wrote " + file);
+    }
+
+    // the profiler's key has a prefix that differs between JMH versions
+    static double allocatedPerOp(RunResult result) {
+	for(Map.Entry<String, Result> e : result.getSecondaryResults().entrySet())
+	    if(e.getKey().endsWith("gc.alloc.rate.norm"))
+		return e.getValue().getScore();
+	throw new IllegalStateException("no gc.alloc.rate.norm for " + result.getParams().getBenchmark());
+    }
+
+    // the same tokenizer and options as the pipeline, so the same tokens
+    static long countTokens(Communication comm) {
+	Communication tokenized = new TokenizeOnlyAnnotator(IncrementalAnnotation.TOOL, null).annotate(comm);
+	long tokens = 0;
+	for(Section section : tokenized.getSectionSegmentation(0).getSectionList())
+	    if(section.getSentenceSegmentationCount() > 0)
+		for(Sentence sentence : section.getSentenceSegmentation(0).getSentenceList())
+		    if(sentence.getTokenizationCount() > 0)
+			tokens += sentence.getTokenization(sentence.getTokenizationCount() - 1).getTokenCount();
+	return Math.max(tokens, 1);
+    }
+}
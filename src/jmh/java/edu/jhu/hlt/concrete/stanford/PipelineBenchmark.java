@@ -0,0 +1,247 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import nu.xom.Document;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.hlt.concrete.Concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Concrete.Communication;
+import edu.jhu.hlt.concrete.Concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.Concrete.EntitySet;
+import edu.jhu.hlt.concrete.Concrete.Section;
+import edu.jhu.hlt.concrete.Concrete.Sentence;
+import edu.jhu.hlt.concrete.Concrete.Tokenization;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Throughput of each step of StanfordAgigaPipe on the small-sample
+ * Communication (override its path with -Dsample=path/to/file.pb).
+ * Run main(), or java -jar target/benchmarks.jar -prof gc, to get
+ * allocation rates alongside.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class PipelineBenchmark {
+
+    static String sampleFile() {
+	return System.getProperty("sample", "small-sample/small-sample.pb");
+    }
+
+    static Communication loadSample() throws IOException {
+	CommunicationStreamReader reader = CommunicationStreamReader.open(new File(sampleFile()));
+	try {
+	    Communication comm = reader.next();
+	    if(comm == null)
+		throw new IOException("no communications in the sample");
+	    return comm;
+	} finally {
+	    reader.close();
+	}
+    }
+
+    /** The sample, its sentence texts, and its sentences tokenized. */
+    @State(Scope.Benchmark)
+    public static class Tokenized {
+	Communication comm;
+	StanfordAgigaPipe pipe;
+	InMemoryAnnoPipeline pipeline;
+	List<String> sentenceTexts = new ArrayList<String>();
+	List<CoreMap> sentences = new ArrayList<CoreMap>();
+	TokenizeOnlyAnnotator tokenizeOnly;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+	    comm = loadSample();
+	    pipe = new StanfordAgigaPipe();
+	    tokenizeOnly = new TokenizeOnlyAnnotator(IncrementalAnnotation.TOOL, null);
+	    pipeline = new InMemoryAnnoPipeline(false);
+	    for(Section section : comm.getSectionSegmentation(0).getSectionList())
+		if(section.getSentenceSegmentationCount() > 0)
+		    for(Sentence sentence : section.getSentenceSegmentation(0).getSentenceList())
+			sentenceTexts.add(comm.getText().substring(sentence.getTextSpan().getStart(),
+								   sentence.getTextSpan().getEnd()));
+	    for(SectionAggregate aggregate : pipe.tokenize(comm))
+		sentences.addAll(aggregate.getAnnotation().get(SentencesAnnotation.class));
+	}
+    }
+
+    /**
+     * Fresh aggregates, run through every stage before (not including)
+     * stage, for each invocation: the stages annotate in place.
+     */
+    @State(Scope.Thread)
+    public static class BeforeStage {
+	@Param({"pos", "lemma", "parse", "ner", "dcoref"})
+	String stage;
+	List<Annotation> documents = new ArrayList<Annotation>();
+
+	@Setup(Level.Invocation)
+	public void setup(Tokenized tokenized) {
+	    documents.clear();
+	    for(SectionAggregate aggregate : tokenized.pipe.tokenize(tokenized.comm)) {
+		Annotation document = aggregate.getAnnotation();
+		for(String earlier : AnnotatorProfile.ALL_STAGES) {
+		    if(earlier.equals(stage))
+			break;
+		    InMemoryAnnoPipeline.annotator(earlier).annotate(document);
+		}
+		if(stage.equals("dcoref"))
+		    InMemoryAnnoPipeline.fixNullDependencyGraphs(document);
+		documents.add(document);
+	    }
+	}
+    }
+
+    /** The sample's aggregates fully annotated, as Annotations, XML and AgigaDocuments. */
+    @State(Scope.Benchmark)
+    public static class Annotated {
+	Communication comm;
+	StanfordCoreNLP xmlPipeline;
+	List<SectionAggregate> aggregates;
+	List<Document> xmlDocs = new ArrayList<Document>();
+	List<AgigaDocument> agigaDocs = new ArrayList<AgigaDocument>();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+	    comm = loadSample();
+	    Properties props = new Properties();
+	    props.put("annotators", "tokenize, ssplit");
+	    xmlPipeline = new StanfordCoreNLP(props);
+	    aggregates = new StanfordAgigaPipe().tokenize(comm);
+	    for(SectionAggregate aggregate : aggregates) {
+		InMemoryAnnoPipeline.runStages(aggregate.getAnnotation());
+		Document xml = InMemoryAnnoPipeline.stanfordToXML(xmlPipeline, aggregate.getAnnotation());
+		xmlDocs.add(xml);
+		agigaDocs.add(InMemoryAnnoPipeline.xmlToAgigaDoc(xml));
+	    }
+	}
+    }
+
+    @Benchmark
+    public void annotateSentence(Tokenized tokenized, Blackhole bh) {
+	for(String text : tokenized.sentenceTexts)
+	    bh.consume(tokenized.pipeline.annotateSentence(text));
+    }
+
+    /** As annotateSentence, but tokenizing straight out of the Communication text. */
+    @Benchmark
+    public void annotateSentenceInText(Tokenized tokenized, Blackhole bh) {
+	String text = tokenized.comm.getText();
+	for(Section section : tokenized.comm.getSectionSegmentation(0).getSectionList())
+	    if(section.getSentenceSegmentationCount() > 0)
+		for(Sentence sentence : section.getSentenceSegmentation(0).getSentenceList())
+		    bh.consume(tokenized.pipeline.annotateSentence(text, sentence.getTextSpan().getStart(),
+								   sentence.getTextSpan().getEnd()));
+    }
+
+    /** Every sentence of the sample tokenized and gathered into aggregates. */
+    @Benchmark
+    public List<SectionAggregate> tokenize(Tokenized tokenized) {
+	return tokenized.pipe.tokenize(tokenized.comm);
+    }
+
+    @Benchmark
+    public Annotation sentencesToDocument(Tokenized tokenized) {
+	return tokenized.pipe.sentencesToDocument(tokenized.sentences);
+    }
+
+    /** Tokenize-only through the full pipeline's tokenize, aggregates and conversion. */
+    @Benchmark
+    public Communication tokenizeOnlyViaPipeline(Tokenized tokenized) {
+	AgigaConcreteAnnotator annotator = tokenized.pipe.newAnnotator();
+	for(SectionAggregate aggregate : tokenized.pipe.tokenize(tokenized.comm))
+	    tokenized.pipe.addAnnotations(annotator, aggregate);
+	return annotator.apply(tokenized.comm);
+    }
+
+    @Benchmark
+    public Communication tokenizeOnlyAnnotator(Tokenized tokenized) {
+	return tokenized.tokenizeOnly.annotate(tokenized.comm);
+    }
+
+    @Benchmark
+    public List<Annotation> stage(BeforeStage before) {
+	for(Annotation document : before.documents)
+	    InMemoryAnnoPipeline.annotator(before.stage).annotate(document);
+	return before.documents;
+    }
+
+    @Benchmark
+    public void stanfordToXML(Annotated annotated, Blackhole bh) {
+	for(SectionAggregate aggregate : annotated.aggregates)
+	    bh.consume(InMemoryAnnoPipeline.stanfordToXML(annotated.xmlPipeline, aggregate.getAnnotation()));
+    }
+
+    @Benchmark
+    public void xmlToAgigaDoc(Annotated annotated, Blackhole bh) throws IOException {
+	for(Document xml : annotated.xmlDocs)
+	    bh.consume(InMemoryAnnoPipeline.xmlToAgigaDoc(xml));
+    }
+
+    /** The default conversion: straight from the Annotations, no XML. */
+    @Benchmark
+    public void concreteConverter(Annotated annotated, Blackhole bh) {
+	StanfordConcreteConverter converter = new StanfordConcreteConverter(AnnotationMetadata.newBuilder()
+									    .setTool(IncrementalAnnotation.TOOL)
+									    .setTimestamp(0)
+									    .build());
+	for(SectionAggregate aggregate : annotated.aggregates) {
+	    List<Tokenization> toks = converter.convertSentences(aggregate.getAnnotation());
+	    EntityMentionSet.Builder mentions = EntityMentionSet.newBuilder();
+	    EntitySet.Builder entities = EntitySet.newBuilder();
+	    converter.convertCoref(aggregate.getAnnotation(), toks, mentions, entities);
+	    bh.consume(toks);
+	    bh.consume(entities);
+	}
+    }
+
+    @Benchmark
+    public Communication agigaConcreteAnnotatorAnnotate(Annotated annotated) {
+	AgigaConcreteAnnotator annotator = new AgigaConcreteAnnotator();
+	Communication comm = annotated.comm;
+	for(int i = 0; i < annotated.aggregates.size(); i++) {
+	    SectionAggregate aggregate = annotated.aggregates.get(i);
+	    comm = annotator.annotate(comm, aggregate.getSectionSegmentationId(), aggregate.getSectionIds(),
+				      aggregate.getSentenceSegIds(), annotated.agigaDocs.get(i));
+	}
+	return comm;
+    }
+
+    public static void main(String[] args) throws Exception {
+	Options options = new OptionsBuilder()
+	    .include(PipelineBenchmark.class.getSimpleName())
+	    .addProfiler(GCProfiler.class)
+	    .build();
+	new Runner(options).run();
+    }
+}
@@ -0,0 +1,85 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.File;
+import java.util.Random;
+
+import edu.jhu.hlt.concrete.Concrete;
+import edu.jhu.hlt.concrete.Concrete.Communication;
+import edu.jhu.hlt.concrete.io.ProtocolBufferReader;
+import edu.jhu.hlt.concrete.io.ProtocolBufferWriter;
+import edu.jhu.hlt.concrete.util.IdUtil;
+import edu.jhu.hlt.concrete.util.ProtoFactory;
+
+/**
+ * Compares ProtocolBufferReader with MappedCommunicationReader (with and
+ * without read-ahead) on a file of Communications, writing a synthetic one
+ * first if the file doesn't exist. Built with the jmh profile:
+ *
+ *   mvn -P jmh package
+ *   java -cp target/benchmarks.jar edu.jhu.hlt.concrete.stanford.ReaderBenchmark path/to/file
+ */
+public class ReaderBenchmark {
+
+    static final String usage = "Usage: ReaderBenchmark <path/to/file> [num-communications (default: 100000)] [text-bytes (default: 8192)]";
+
+    public static void main(String[] args) throws Exception {
+	if(args.length < 1 || args.length > 3) {
+	    System.err.println(usage);
+	    System.exit(1);
+	}
+	File file = new File(args[0]);
+	int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+	int textBytes = args.length > 2 ? Integer.parseInt(args[2]) : 8192;
+	if(!file.exists())
+	    writeSynthetic(file, count, textBytes);
+	double mb = file.length() / (1024.0 * 1024.0);
+
+	for(int round = 0; round < 2; round++) {	// the first round warms up the JIT and page cache
+	    long start = System.nanoTime();
+	    int n = 0;
+	    ProtocolBufferReader pbr = new ProtocolBufferReader(file.getPath(), Concrete.Communication.class);
+	    while(pbr.hasNext()) {
+		pbr.next();
+		n++;
+	    }
+	    report("ProtocolBufferReader", n, mb, start);
+
+	    for(int readAhead : new int[] {0, 64}) {
+		start = System.nanoTime();
+		n = 0;
+		MappedCommunicationReader reader = new MappedCommunicationReader(file, readAhead);
+		while(reader.next() != null)
+		    n++;
+		reader.close();
+		report("MappedCommunicationReader, read-ahead " + readAhead, n, mb, start);
+	    }
+	}
+    }
+
+    private static void report(String name, int n, double mb, long start) {
+	double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+	System.err.printf("%-45s %d communications in %.2f s (%.0f communications/sec, %.1f MB/s)\n",
+			  name, n, seconds, n / seconds, mb / seconds);
+    }
+
+    private static void writeSynthetic(File file, int count, int textBytes) throws Exception {
+	System.err.printf("Writing %d synthetic communications to %s\n", count, file);
+	String[] words = {"the", "of", "said", "government", "on", "Tuesday", "officials", "market",
+			  "reported", "a", "percent", "new", "York", "in", "company", "."};
+	Random random = new Random(0);
+	ProtocolBufferWriter pbw = new ProtocolBufferWriter(file.getPath());
+	StringBuilder sb = new StringBuilder(textBytes + 16);
+	for(int i = 0; i < count; i++) {
+	    sb.setLength(0);
+	    while(sb.length() < textBytes)
+		sb.append(words[random.nextInt(words.length)]).append(' ');
+	    pbw.write(Communication.newBuilder()
+		      .setUuid(IdUtil.generateUUID())
+		      .setGuid(ProtoFactory.generateCommGuid("reader-benchmark", Integer.toString(i)))
+		      .setKind(Communication.Kind.NEWS)
+		      .setText(sb.toString())
+		      .build());
+	}
+	pbw.close();
+    }
+}
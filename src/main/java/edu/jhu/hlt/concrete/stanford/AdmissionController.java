@@ -0,0 +1,132 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Bounds the work in flight by its size, not just its count: each
+ * Communication is admitted with an estimate of its tokens (see
+ * CommunicationCost), and the reader blocks once the estimates of
+ * everything admitted but not yet annotated would pass the budget. Parse trees, dependency graphs and dcoref mentions
+ * all grow with the number of tokens, so a few large documents arriving
+ * together hold up reading instead of exhausting the heap.
+ *
+ * It also watches the heap: once the old generation is still over
+ * lowMemoryFraction of its maximum after a collection (the pools'
+ * collection usage threshold notification), it admits one Communication at
+ * a time until usage after a collection drops below the threshold again.
+ *
+ * One Communication is always admitted when nothing else is in flight, so
+ * a single document over the budget still goes through, alone.
+ */
+public class AdmissionController {
+
+    private final long maxTokens;
+    private final List<MemoryPoolMXBean> watched = new ArrayList<MemoryPoolMXBean>();
+
+    private long inFlightTokens = 0;
+    private int inFlight = 0;
+    private volatile boolean lowMemory = false;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong lowMemoryEvents = new AtomicLong();
+
+    /**
+     * @param maxTokens the budget on estimated tokens in flight, or 0 for none
+     * @param lowMemoryFraction the fraction of the old generation still used
+     *        after a collection that counts as low memory, or 0 not to watch
+     */
+    public AdmissionController(long maxTokens, double lowMemoryFraction) {
+	this.maxTokens = maxTokens;
+	if(lowMemoryFraction > 0)
+	    watchHeap(lowMemoryFraction);
+    }
+
+    private void watchHeap(double fraction) {
+	for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    // the old generation: the heap pool that supports both thresholds
+	    if(pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()
+	       || !pool.isCollectionUsageThresholdSupported() || pool.getUsage().getMax() <= 0)
+		continue;
+	    pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * fraction));
+	    watched.add(pool);
+	}
+	if(watched.isEmpty()) {
+	    System.err.println("No heap pool supports usage thresholds; not watching memory");
+	    return;
+	}
+	NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+	emitter.addNotificationListener(new NotificationListener() {
+		public void handleNotification(Notification n, Object handback) {
+		    if(!n.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED))
+			return;
+		    lowMemoryEvents.incrementAndGet();
+		    lowMemory = true;
+		}
+	    }, null, null);
+    }
+
+    /**
+     * Block until comm fits in the budget. Returns the tokens admitted, to
+     * hand back to release() once comm has been annotated.
+     */
+    public synchronized long acquire(Communication comm) throws InterruptedException {
+	long tokens = CommunicationCost.estimateTokens(comm);
+	long start = 0;
+	while(inFlight > 0 && !fits(tokens)) {
+	    if(start == 0) {
+		start = System.nanoTime();
+		waits.incrementAndGet();
+	    }
+	    // memory is rechecked now and then, not just on release
+	    wait(lowMemory ? 100 : 0);
+	}
+	if(start != 0)
+	    waitNanos.addAndGet(System.nanoTime() - start);
+	inFlight++;
+	inFlightTokens += tokens;
+	admitted.incrementAndGet();
+	return tokens;
+    }
+
+    private boolean fits(long tokens) {
+	if(lowMemory && !recovered())
+	    return false;
+	return maxTokens <= 0 || inFlightTokens + tokens <= maxTokens;
+    }
+
+    // true (and low memory cleared) once every pool is back under its threshold after a collection
+    private boolean recovered() {
+	for(MemoryPoolMXBean pool : watched)
+	    if(pool.isCollectionUsageThresholdExceeded())
+		return false;
+	lowMemory = false;
+	return true;
+    }
+
+    public synchronized void release(long tokens) {
+	inFlight--;
+	inFlightTokens -= tokens;
+	notifyAll();
+    }
+
+    /** Admissions, how often and how long the reader was held up, and low memory events. */
+    public String stats() {
+	return String.format("admission: %d admitted (budget %s tokens), held up %d times for %.1f s, %d low memory events",
+			     admitted.get(), maxTokens > 0 ? Long.toString(maxTokens) : "none",
+			     waits.get(), waitNanos.get() / 1e9, lowMemoryEvents.get());
+    }
+}
@@ -5,15 +5,38 @@ import edu.jhu.hlt.concrete.Concrete.*;
 import edu.jhu.hlt.concrete.util.*;
 import edu.jhu.hlt.concrete.agiga.AgigaConverter;
 import edu.jhu.agiga.*;
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations.CorefChainAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.util.CoreMap;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * given a Communication (with Sections and Sentences added)
- * and Stanford's annotations via an AgigaDocument,
+ * and Stanford's annotations, either via an AgigaDocument or
+ * directly from the CoreNLP Annotation,
  * add these annotations and return a new Communication
+ *
+ * Annotations for any number of section aggregates can be added with add();
+ * apply() then rebuilds the Communication once, finding the sections and
+ * sentence segmentations through UUID indexes.
+ *
+ * With replaceExisting, apply() first removes the Tokenizations an earlier
+ * concrete-stanford run left on the sentences it annotates, and the
+ * EntityMentionSets and EntitySets referring to them (see
+ * IncrementalAnnotation).
+ *
+ * With mergeEntitySets, the mentions and entities of every aggregate go
+ * into one EntityMentionSet and one EntitySet per Communication, rather
+ * than a pair per aggregate.
+ *
+ * Only the layers in setOutputLayers() (by default all) are added.
  */
 public class AgigaConcreteAnnotator {
 
@@ -22,48 +45,171 @@ public class AgigaConcreteAnnotator {
     public AgigaConcreteAnnotator(boolean debug){
 	this.debug=debug;
     }
+    /**
+     * @param tool the tool name in the metadata of everything added
+     * @param replaceExisting remove earlier concrete-stanford output from the
+     *        sentences annotated
+     */
+    public AgigaConcreteAnnotator(boolean debug, String tool, boolean replaceExisting){
+	this(debug, tool, replaceExisting, false);
+    }
+    /**
+     * @param mergeEntitySets add all entity mentions and entities to a single
+     *        EntityMentionSet and EntitySet per Communication
+     */
+    public AgigaConcreteAnnotator(boolean debug, String tool, boolean replaceExisting,
+				  boolean mergeEntitySets){
+	this.debug=debug;
+	this.tool=tool;
+	this.replaceExisting=replaceExisting;
+	this.mergeEntitySets=mergeEntitySets;
+    }
 
     private boolean debug = false;
+    private String tool = IncrementalAnnotation.TOOL;
+    private boolean replaceExisting = false;
+    private boolean mergeEntitySets = false;
+    private OutputLayers layers = OutputLayers.ALL;
 
-    private long timestamp;
+    /** Add only these layers from now on. */
+    public void setOutputLayers(OutputLayers layers) {
+	this.layers = layers;
+    }
+
+    private long timestamp = Calendar.getInstance().getTimeInMillis() / 1000;
     private AnnotationMetadata metadata() {
 	return AnnotationMetadata.newBuilder()
-	    .setTool("concrete-stanford")
+	    .setTool(tool)
 	    .setTimestamp(timestamp)
 	    .build();
     }
-		
-    private Communication comm;
-    private UUID sectionSegmentationId;
-    private List<UUID> sectionIds;
-    private List<UUID> sentenceSegIds;
-    private AgigaDocument agigaDoc;
-    private int agigaSentPtr = -1;
-    private int sectionPtr = -1;
 
-    // need to reference this in building corefs
-    private List<Tokenization> tokenizations;
+    // the annotations for one section aggregate
+    private static class Aggregate {
+	UUID sectionSegmentationId;
+	List<UUID> sectionIds;
+	List<UUID> sentenceSegIds;
+	List<Tokenization> tokenizations;	// one per sentence, in order
+	EntityMentionSet entityMentionSet;
+	EntitySet entitySet;
+    }
+    private final List<Aggregate> pending = new ArrayList<Aggregate>();
 
     public static String uuidStr(UUID id) {
 	return id == null ? "null" : new java.util.UUID(id.getHigh(), id.getLow()).toString();
     }
 
-    public synchronized Communication annotate(
-					       Communication comm,
-					       UUID sectionSegmentationId,
-					       List<UUID> sectionIds,		// relevant sections (look inside for #sentences)
-					       List<UUID> sentenceSegIds,	// ids of the sentence splits to use for each section
-					       AgigaDocument agigaDoc) {
+    public synchronized void add(
+				 UUID sectionSegmentationId,
+				 List<UUID> sectionIds,		// relevant sections (look inside for #sentences)
+				 List<UUID> sentenceSegIds,	// ids of the sentence splits to use for each section
+				 AgigaDocument agigaDoc) {
+	add(sectionSegmentationId, sectionIds, sentenceSegIds, agigaDoc, null);
+    }
+
+    /**
+     * As above; annotation (if not null) is the document agigaDoc was made
+     * from, whose sentences given a fallback parse by ParseBudget are
+     * flagged in their metadata as StanfordConcreteConverter does.
+     */
+    public synchronized void add(
+				 UUID sectionSegmentationId,
+				 List<UUID> sectionIds,
+				 List<UUID> sentenceSegIds,
+				 AgigaDocument agigaDoc,
+				 Annotation annotation) {
+	long start = System.nanoTime();
+	List<Tokenization> toks = convertTokenizations(agigaDoc, annotation, metadata(), layers);
+	// agiga can't tell "no coref" from "no entities": ask the profile
+	if(!InMemoryAnnoPipeline.getProfile().has("dcoref") || !layers.has("coref")) {
+	    PipelineMetrics.CONVERT.since(start);
+	    add(sectionSegmentationId, sectionIds, sentenceSegIds, toks, null, null);
+	    return;
+	}
+	EntityMentionSet.Builder emsb = newEntityMentionSet();
+	EntitySet.Builder esb = newEntitySet();
+	for(AgigaCoref coref : agigaDoc.getCorefs()) {
+	    Entity e = AgigaConverter.convertCoref(emsb, coref, agigaDoc, toks);
+	    esb.addEntity(e);
+	}
+	PipelineMetrics.CONVERT.since(start);
+	add(sectionSegmentationId, sectionIds, sentenceSegIds, toks, emsb.build(), esb.build());
+    }
 
+    /** One Tokenization per sentence of agigaDoc, with only the given layers. */
+    static List<Tokenization> convertTokenizations(AgigaDocument agigaDoc, Annotation annotation,
+						   AnnotationMetadata metadata, OutputLayers layers) {
+	List<CoreMap> sentences = annotation == null ? null : annotation.get(SentencesAnnotation.class);
+	List<Tokenization> toks = new ArrayList<Tokenization>();
+	for(AgigaSentence asent : agigaDoc.getSents()) {
+	    // tokenization has all the annotations
+	    Tokenization.Builder tb = AgigaConverter.convertTokenization(asent).toBuilder();
+	    String fallback = sentences == null ? null
+		: sentences.get(toks.size()).get(ParseBudget.ParseFallbackAnnotation.class);
+	    if(fallback == null) {
+		tb.setMetadata(metadata);
+	    } else {
+		AnnotationMetadata flagged = StanfordConcreteConverter.fallbackMetadata(metadata, fallback);
+		tb.setMetadata(flagged);
+		for(int i = 0; i < tb.getParseCount(); i++)
+		    tb.getParseBuilder(i).setMetadata(flagged);
+		for(int i = 0; i < tb.getDependencyParseCount(); i++)
+		    tb.getDependencyParseBuilder(i).setMetadata(flagged);
+	    }
+	    toks.add(layers.project(tb.build()));
+	}
+	return toks;
+    }
+
+    /**
+     * Skips the agiga round trip: annotation is the annotated document
+     * (one CoreMap per sentence of the given sections, in order).
+     */
+    public synchronized void add(
+				 UUID sectionSegmentationId,
+				 List<UUID> sectionIds,
+				 List<UUID> sentenceSegIds,
+				 Annotation annotation) {
+	long start = System.nanoTime();
+	StanfordConcreteConverter converter = new StanfordConcreteConverter(metadata(), layers);
+	List<Tokenization> toks = converter.convertSentences(annotation);
+	if(!layers.has("coref")
+	   || (annotation.get(CorefChainAnnotation.class) == null && !CorefWindows.isWindowed(annotation))) {
+	    // dcoref didn't run, or isn't wanted: no entity layers
+	    PipelineMetrics.CONVERT.since(start);
+	    add(sectionSegmentationId, sectionIds, sentenceSegIds, toks, null, null);
+	    return;
+	}
+	EntityMentionSet.Builder emsb = newEntityMentionSet();
+	EntitySet.Builder esb = newEntitySet();
+	if(CorefWindows.isWindowed(annotation))
+	    CorefWindows.convert(annotation, converter, toks, emsb, esb);
+	else
+	    converter.convertCoref(annotation, toks, emsb, esb);
+	PipelineMetrics.CONVERT.since(start);
+	add(sectionSegmentationId, sectionIds, sentenceSegIds, toks, emsb.build(), esb.build());
+    }
+
+    /**
+     * tokenizations holds one Tokenization per sentence of the given
+     * sections, in order. The id lists are copied. entityMentionSet and
+     * entitySet may be null, if coref wasn't run.
+     */
+    public synchronized void add(
+				 UUID sectionSegmentationId,
+				 List<UUID> sectionIds,
+				 List<UUID> sentenceSegIds,
+				 List<Tokenization> tokenizations,
+				 EntityMentionSet entityMentionSet,
+				 EntitySet entitySet) {
 	if(sectionIds.size() != sentenceSegIds.size()) {
 	    throw new IllegalArgumentException(
 					       "sectionIds and sentenceSegIds need to have a 1-to-1 correspondence");
 	}
 	if(sectionIds.size() == 0) {
 	    System.err.println("WARNING: calling annotate with no sections specified!");
-	    return comm.toBuilder().build();
+	    return;
 	}
-
 	if(debug){
 	    System.err.println("[AgigaConcreteAnnotator debug]");
 	    System.err.println("sectionSegmentationId = " + uuidStr(sectionSegmentationId));
@@ -72,155 +218,216 @@ public class AgigaConcreteAnnotator {
 				  i, uuidStr(sectionIds.get(i)), i, uuidStr(sentenceSegIds.get(i)));
 	    }
 	}
+	Aggregate agg = new Aggregate();
+	agg.sectionSegmentationId = sectionSegmentationId;
+	agg.sectionIds = new ArrayList<UUID>(sectionIds);
+	agg.sentenceSegIds = new ArrayList<UUID>(sentenceSegIds);
+	agg.tokenizations = tokenizations;
+	agg.entityMentionSet = entityMentionSet;
+	agg.entitySet = entitySet;
+	pending.add(agg);
+    }
+
+    /**
+     * Add everything passed to add() since the last call to comm, in a single
+     * rebuild, and return the new Communication.
+     */
+    public synchronized Communication apply(Communication comm) {
+	if(pending.isEmpty())
+	    return comm;
+	long start = System.nanoTime();
 
-	this.timestamp = Calendar.getInstance().getTimeInMillis() / 1000;
-	this.sectionSegmentationId = sectionSegmentationId;
-	this.sectionIds = sectionIds;
-	this.sentenceSegIds = sentenceSegIds;
-	this.agigaDoc = agigaDoc;
-	this.agigaSentPtr = 0;
-	this.sectionPtr = 0;
-	this.tokenizations = new ArrayList<Tokenization>();
-	return f1(comm);
-    }
-	
-    // Communication
-    // SectionSegmentation
-    // Section
-    // SentenceSegmentation
-    // Sentence
-    // Tokenization
-
-    // replace relavant SectionSegmentation
-    private Communication f1(Communication in) {
-
-	Communication.Builder newComm = in.toBuilder();
-	SectionSegmentation newSS = null;
-	int remove = -1;
-	int n = newComm.getSectionSegmentationCount();
-	for(int i=0; i<n; i++) {
-	    SectionSegmentation ss = newComm.getSectionSegmentation(i);
-	    if(ss.getUuid().equals(this.sectionSegmentationId)) {
-		remove = i;
-		newSS = f2(ss);
+	// UUID -> index maps: SectionSegmentation -> {ss},
+	// Section -> {ss, section}, SentenceSegmentation -> {ss, section, sentseg}
+	Map<UUID, Integer> sectionSegIndex = new HashMap<UUID, Integer>();
+	Map<UUID, int[]> sectionIndex = new HashMap<UUID, int[]>();
+	Map<UUID, int[]> sentenceSegIndex = new HashMap<UUID, int[]>();
+	for(int i = 0; i < comm.getSectionSegmentationCount(); i++) {
+	    SectionSegmentation ss = comm.getSectionSegmentation(i);
+	    sectionSegIndex.put(ss.getUuid(), i);
+	    for(int j = 0; j < ss.getSectionCount(); j++) {
+		Section section = ss.getSection(j);
+		sectionIndex.put(section.getUuid(), new int[] {i, j});
+		for(int k = 0; k < section.getSentenceSegmentationCount(); k++)
+		    sentenceSegIndex.put(section.getSentenceSegmentation(k).getUuid(), new int[] {i, j, k});
 	    }
 	}
-	if(remove >= 0) {
-	    newComm.removeSectionSegmentation(remove);
-	    newComm.addSectionSegmentation(newSS);
-	}
-	else throw new RuntimeException("couldn't find SectionSegmentation with UUID=" + this.sectionSegmentationId);
 
-	////////////////////////////////////////////////////////////////////////////
-	// corefs
-	if(this.tokenizations.size() != this.agigaDoc.getSents().size()) {
-	    throw new RuntimeException("#agigaSents=" + agigaDoc.getSents().size() + ", #tokenizations=" + tokenizations.size());
-	}
-        EntityMentionSet.Builder emsb = EntityMentionSet.newBuilder()
-            .setUuid(IdUtil.generateUUID())
-            .setMetadata(metadata());
-        EntitySet.Builder esb = EntitySet.newBuilder()
-            .setUuid(IdUtil.generateUUID())
-            .setMetadata(metadata());
-        for(AgigaCoref coref : this.agigaDoc.getCorefs()) {
-            Entity e = AgigaConverter.convertCoref(emsb, coref, this.agigaDoc, this.tokenizations);
-            esb.addEntity(e);
-        }
-        newComm.addEntityMentionSet(emsb);
-        newComm.addEntitySet(esb);
-
-	return newComm.build();
-    }
-
-    // replace relevant Sections
-    private SectionSegmentation f2(SectionSegmentation in) {
-
-	// make empty SS
-	SectionSegmentation.Builder newSS = in.toBuilder();
-	int n = newSS.getSectionCount();
-	assert n > 0 : "n="+n;
-	for(int i=n; i>0; i--)
-	    newSS.removeSection(i-1);
-
-	// add them from source
-	UUID target = this.sectionIds.get(this.sectionPtr);
-	if(debug)
-	    System.err.println("[f2] target=" + uuidStr(target));
-	for(Section section : in.getSectionList()) {
-	    if(debug)
-		System.err.printf("sectionPtr=%d sect.uuid=%s\n", sectionPtr, uuidStr(section.getUuid()));
-	    if(section.getUuid().equals(target)) {
-		newSS.addSection(f3(section));
-		this.sectionPtr++;
-		target = this.sectionPtr < this.sectionIds.size()
-		    ? this.sectionIds.get(this.sectionPtr)
-		    : null;
+	Communication.Builder newComm = comm.toBuilder();
+	// earlier output taken off the sentences annotated again
+	Set<UUID> replacedTokenizations = new HashSet<UUID>();
+	for(Aggregate agg : pending) {
+	    Integer ssIdx = sectionSegIndex.get(agg.sectionSegmentationId);
+	    if(ssIdx == null)
+		throw new RuntimeException("couldn't find SectionSegmentation with UUID=" + uuidStr(agg.sectionSegmentationId));
+	    int sentPtr = 0;
+	    for(int s = 0; s < agg.sectionIds.size(); s++) {
+		int[] sectionIdx = sectionIndex.get(agg.sectionIds.get(s));
+		if(sectionIdx == null || sectionIdx[0] != ssIdx)
+		    throw new RuntimeException("couldn't find Section with UUID=" + uuidStr(agg.sectionIds.get(s))
+					       + " in SectionSegmentation " + uuidStr(agg.sectionSegmentationId));
+		int[] sentSegIdx = sentenceSegIndex.get(agg.sentenceSegIds.get(s));
+		if(sentSegIdx == null || sentSegIdx[0] != sectionIdx[0] || sentSegIdx[1] != sectionIdx[1])
+		    throw new RuntimeException("couldn't find SentenceSegmentation with UUID=" + uuidStr(agg.sentenceSegIds.get(s))
+					       + " in Section " + uuidStr(agg.sectionIds.get(s)));
 		if(debug)
-		    System.err.println("[f2] target=" + uuidStr(target));
+		    System.err.printf("[apply] section=%s at %d/%d, sentseg at %d\n",
+				      uuidStr(agg.sectionIds.get(s)), sentSegIdx[0], sentSegIdx[1], sentSegIdx[2]);
+		SentenceSegmentation.Builder sentSeg = newComm
+		    .getSectionSegmentationBuilder(sentSegIdx[0])
+		    .getSectionBuilder(sentSegIdx[1])
+		    .getSentenceSegmentationBuilder(sentSegIdx[2]);
+		for(int i = 0; i < sentSeg.getSentenceCount(); i++) {
+		    if(sentPtr >= agg.tokenizations.size())
+			throw new RuntimeException("more sentences than the " + agg.tokenizations.size() + " annotated ones");
+		    Sentence.Builder sentence = sentSeg.getSentenceBuilder(i);
+		    if(replaceExisting)
+			removeOurs(sentence, replacedTokenizations);
+		    sentence.addTokenization(agg.tokenizations.get(sentPtr++));
+		}
+	    }
+	    if(sentPtr != agg.tokenizations.size()) {
+		throw new RuntimeException("#annotatedSents=" + agg.tokenizations.size() + ", #sentences=" + sentPtr);
+	    }
+	    if(mergeEntitySets) {
+		merge(newComm, agg.entityMentionSet, agg.entitySet);
+	    } else {
+		if(agg.entityMentionSet != null)
+		    newComm.addEntityMentionSet(agg.entityMentionSet);
+		if(agg.entitySet != null)
+		    newComm.addEntitySet(agg.entitySet);
 	    }
-	    else newSS.addSection(section);
 	}
-	if(this.sectionPtr != this.sectionIds.size())
-	    throw new RuntimeException(String.format("found %d of %d sections", this.sectionPtr, this.sectionIds.size()));
-
-	return newSS.build();
+	if(!replacedTokenizations.isEmpty())
+	    removeEntities(newComm, replacedTokenizations);
+	pending.clear();
+	Communication built = newComm.build();
+	PipelineMetrics.REBUILD.since(start);
+	return built;
     }
 
-    // replace relevant SentenceSegmentation
-    private Section f3(Section in) {
-	if(debug)
-	    System.err.println("f3");
+    /**
+     * Add mentions and entities (either may be null) to the sets this
+     * annotator already put on comm, found by their metadata; the first
+     * aggregate's sets become those sets.
+     */
+    private void merge(Communication.Builder comm, EntityMentionSet mentions, EntitySet entities) {
+	AnnotationMetadata ours = metadata();
+	if(mentions != null) {
+	    int i = comm.getEntityMentionSetCount() - 1;
+	    while(i >= 0 && !comm.getEntityMentionSet(i).getMetadata().equals(ours))
+		i--;
+	    if(i < 0)
+		comm.addEntityMentionSet(mentions);
+	    else
+		comm.getEntityMentionSetBuilder(i).addAllMention(mentions.getMentionList());
+	}
+	if(entities != null) {
+	    int i = comm.getEntitySetCount() - 1;
+	    while(i >= 0 && !comm.getEntitySet(i).getMetadata().equals(ours))
+		i--;
+	    if(i < 0)
+		comm.addEntitySet(entities);
+	    else
+		comm.getEntitySetBuilder(i).addAllEntity(entities.getEntityList());
+	}
+    }
 
-	// make empty Section
-	Section.Builder newS = in.toBuilder();
-	for(int i=in.getSentenceSegmentationCount(); i>0; i--)
-	    newS.removeSentenceSegmentation(i-1);
+    // take earlier concrete-stanford Tokenizations off sentence, adding their ids to removed
+    static void removeOurs(Sentence.Builder sentence, Set<UUID> removed) {
+	List<Tokenization> keep = new ArrayList<Tokenization>();
+	for(Tokenization tokenization : sentence.getTokenizationList()) {
+	    if(tokenization.hasMetadata() && IncrementalAnnotation.isOurs(tokenization.getMetadata()))
+		removed.add(tokenization.getUuid());
+	    else
+		keep.add(tokenization);
+	}
+	if(keep.size() == sentence.getTokenizationCount())
+	    return;
+	sentence.clearTokenization();
+	sentence.addAllTokenization(keep);
+    }
 
-	// add back to it
-	UUID target = this.sentenceSegIds.get(this.sectionPtr);	// GLOBAL STATE
-	int found = 0;
-	for(SentenceSegmentation ss : in.getSentenceSegmentationList()) {
-	    if(ss.getUuid().equals(target)) {
-		newS.addSentenceSegmentation(f4(ss));
-		found++;
+    /**
+     * Remove the mentions in the removed Tokenizations from our
+     * EntityMentionSets, and the entities using them from our EntitySets.
+     * Sets left empty are removed. This works mention by mention, so a
+     * merged set (see mergeEntitySets) keeps the mentions of the aggregates
+     * that weren't annotated again.
+     */
+    static void removeEntities(Communication.Builder comm, Set<UUID> removedTokenizations) {
+	Set<UUID> removedMentions = new HashSet<UUID>();
+	List<EntityMentionSet> keepMentions = new ArrayList<EntityMentionSet>();
+	for(EntityMentionSet ems : comm.getEntityMentionSetList()) {
+	    if(!ems.hasMetadata() || !IncrementalAnnotation.isOurs(ems.getMetadata())) {
+		keepMentions.add(ems);
+		continue;
+	    }
+	    List<EntityMention> keep = new ArrayList<EntityMention>();
+	    for(EntityMention mention : ems.getMentionList()) {
+		if(removedTokenizations.contains(mention.getTokens().getTokenizationId()))
+		    removedMentions.add(mention.getUuid());
+		else
+		    keep.add(mention);
 	    }
-	    else newS.addSentenceSegmentation(ss);
+	    if(keep.size() == ems.getMentionCount())
+		keepMentions.add(ems);
+	    else if(!keep.isEmpty())
+		keepMentions.add(ems.toBuilder().clearMention().addAllMention(keep).build());
 	}
-	if(found != 1)
-	    throw new RuntimeException("expected 1 sentence segmentation, found " + found);
-
-	return newS.build();
+	List<EntitySet> keepEntities = new ArrayList<EntitySet>();
+	for(EntitySet es : comm.getEntitySetList()) {
+	    if(!es.hasMetadata() || !IncrementalAnnotation.isOurs(es.getMetadata())) {
+		keepEntities.add(es);
+		continue;
+	    }
+	    List<Entity> keep = new ArrayList<Entity>();
+	    for(Entity entity : es.getEntityList()) {
+		boolean stale = false;
+		for(UUID mention : entity.getMentionList())
+		    if(removedMentions.contains(mention))
+			stale = true;
+		if(!stale)
+		    keep.add(entity);
+	    }
+	    if(keep.size() == es.getEntityCount())
+		keepEntities.add(es);
+	    else if(!keep.isEmpty())
+		keepEntities.add(es.toBuilder().clearEntity().addAllEntity(keep).build());
+	}
+	comm.clearEntityMentionSet().addAllEntityMentionSet(keepMentions);
+	comm.clearEntitySet().addAllEntitySet(keepEntities);
     }
 
-    // replace all Sentences
-    private SentenceSegmentation f4(SentenceSegmentation in) {
-	if(debug)
-	    System.err.println("f4");
-
-	// make empty SentenceSegmentation
-	SentenceSegmentation.Builder newSS = in.toBuilder();
-	int n = in.getSentenceCount();
-	assert n > 0 : "n=" + n;
-	for(int i=n; i>0; i--)
-	    newSS.removeSentence(i-1);
+    public synchronized Communication annotate(
+					       Communication comm,
+					       UUID sectionSegmentationId,
+					       List<UUID> sectionIds,
+					       List<UUID> sentenceSegIds,
+					       AgigaDocument agigaDoc) {
+	add(sectionSegmentationId, sectionIds, sentenceSegIds, agigaDoc);
+	return apply(comm);
+    }
 
-	// add back to it
-	for(Sentence s : in.getSentenceList())
-	    newSS.addSentence(f5(s));
+    public synchronized Communication annotate(
+					       Communication comm,
+					       UUID sectionSegmentationId,
+					       List<UUID> sectionIds,
+					       List<UUID> sentenceSegIds,
+					       Annotation annotation) {
+	add(sectionSegmentationId, sectionIds, sentenceSegIds, annotation);
+	return apply(comm);
+    }
 
-	return newSS.build();
+    private EntityMentionSet.Builder newEntityMentionSet() {
+	return EntityMentionSet.newBuilder()
+	    .setUuid(IdUtil.generateUUID())
+	    .setMetadata(metadata());
     }
 
-    // add a Tokenization
-    private Sentence f5(Sentence in) {
-	if(debug)
-	    System.err.println("f5");
-	AgigaSentence asent = this.agigaDoc.getSents().get(agigaSentPtr++);
-	Tokenization tok = AgigaConverter.convertTokenization(asent);	// tokenization has all the annotations
-	this.tokenizations.add(tok);
-	Sentence.Builder newS = in.toBuilder();
-	newS.addTokenization(tok);
-	return newS.build();
+    private EntitySet.Builder newEntitySet() {
+	return EntitySet.newBuilder()
+	    .setUuid(IdUtil.generateUUID())
+	    .setMetadata(metadata());
     }
 }
-
@@ -0,0 +1,99 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Sends a file of Communications to an AnnotationServer (see
+ * StanfordAgigaPipe --serve) and writes the annotated ones to another file,
+ * in the same order. Requests are pipelined: a second thread sends while
+ * this one reads the answers.
+ */
+public class AnnotationClient {
+
+    static final String usage = "Usage: AnnotationClient --port N --input path/to/input/file --output path/to/output/file\n";
+
+    public static void main(String[] args) throws Exception {
+	int port = -1;
+	String input = null;
+	String output = null;
+	try {
+	    for(int i = 0; i < args.length; i++) {
+		if(args[i].equals("--port")) port = Integer.parseInt(args[++i]);
+		else if(args[i].equals("--input")) input = args[++i];
+		else if(args[i].equals("--output")) output = args[++i];
+		else throw new IllegalArgumentException(args[i]);
+	    }
+	} catch(Exception e) {
+	    System.err.println(usage);
+	    System.exit(1);
+	}
+	if(port < 0 || input == null || output == null) {
+	    System.err.println(usage);
+	    System.exit(1);
+	}
+	long start = System.nanoTime();
+	long n = annotate(port, new File(input), new File(output));
+	double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+	System.err.printf("Annotated %d communications in %.2f s (%.1f ms each)\n", n, seconds, 1000 * seconds / Math.max(n, 1));
+    }
+
+    /** Returns the number of Communications annotated. */
+    public static long annotate(int port, File input, File output) throws IOException, InterruptedException {
+	final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+	socket.setTcpNoDelay(true);
+	final CommunicationStreamReader reader = CommunicationStreamReader.open(input);
+	final AtomicLong sent = new AtomicLong();
+	final IOException[] sendFailure = new IOException[1];
+	Thread sender = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			Communication comm;
+			while((comm = reader.next()) != null) {
+			    comm.writeDelimitedTo(out);
+			    sent.incrementAndGet();
+			}
+			out.flush();
+			socket.shutdownOutput();
+		    } catch(IOException e) {
+			sendFailure[0] = e;
+		    }
+		}
+	    }, "client-sender");
+	sender.setDaemon(true);
+	sender.start();
+
+	long received = 0;
+	OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+	try {
+	    InputStream in = new BufferedInputStream(socket.getInputStream());
+	    Communication comm;
+	    while((comm = Communication.parseDelimitedFrom(in)) != null) {
+		comm.writeDelimitedTo(out);
+		received++;
+	    }
+	} finally {
+	    out.close();
+	    socket.close();
+	    reader.close();
+	}
+	sender.join();
+	if(sendFailure[0] != null)
+	    throw sendFailure[0];
+	if(received != sent.get())
+	    throw new IOException("sent " + sent.get() + " communications but got " + received
+				  + " back; see the server's log");
+	return received;
+    }
+}
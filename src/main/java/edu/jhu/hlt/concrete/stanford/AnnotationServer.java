@@ -0,0 +1,224 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Keeps the annotators loaded and annotates Communications sent over local
+ * TCP connections, so small jobs don't pay for loading the models.
+ *
+ * The protocol is the one of our .pb files: a client writes varint
+ * length-delimited Communications and reads back one annotated
+ * Communication, delimited the same way, per request, in request order.
+ * Requests on a connection may be pipelined. If a request fails, the
+ * server answers the requests before it and closes the connection.
+ *
+ * Requests from all connections go to one queue served by a worker per
+ * CommunicationAnnotator. A worker takes its share of the requests already
+ * waiting (up to maxBatch) and annotates them back to back, each on its
+ * own: this only saves queue hand-offs under load, not annotation work. A
+ * worker never waits for more requests to arrive, so an idle server starts
+ * on a request as soon as it comes in.
+ */
+public class AnnotationServer {
+
+    private static class Request {
+	final Communication comm;
+	final long received = System.nanoTime();
+	final CountDownLatch done = new CountDownLatch(1);
+	Communication result;
+	Throwable failure;
+	long admitted;
+
+	Request(Communication comm) {
+	    this.comm = comm;
+	}
+
+	Communication await() throws IOException, InterruptedException {
+	    done.await();
+	    if(failure != null)
+		throw new IOException("annotation failed", failure);
+	    return result;
+	}
+    }
+    // no more requests on the connection
+    private static final Request END = new Request(null);
+
+    private static final PipelineMetrics.Stage REQUEST = PipelineMetrics.stage("request");
+
+    private final List<? extends CommunicationAnnotator> annotators;
+    private final int maxBatch;
+    private final boolean debug;
+    private AdmissionController admission = null;
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param annotators one worker thread each
+     * @param maxBatch most requests a worker takes at once
+     */
+    public AnnotationServer(List<? extends CommunicationAnnotator> annotators, int maxBatch, boolean debug) {
+	if(annotators.isEmpty())
+	    throw new IllegalArgumentException("need at least one annotator");
+	this.annotators = annotators;
+	this.maxBatch = Math.max(maxBatch, 1);
+	this.debug = debug;
+    }
+
+    /** Stop reading requests while admission says the work in flight is too big. */
+    public void setAdmissionController(AdmissionController admission) {
+	this.admission = admission;
+    }
+
+    /** Accept connections on localhost:port until the JVM is stopped. */
+    public void serve(int port) throws IOException {
+	for(int i = 0; i < annotators.size(); i++) {
+	    final CommunicationAnnotator annotator = annotators.get(i);
+	    Thread t = new Thread(new Runnable() {
+		    public void run() {
+			work(annotator);
+		    }
+		}, "server-worker-" + i);
+	    t.setDaemon(true);
+	    t.start();
+	}
+	ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	System.err.printf("Annotating on %s with %d worker(s)\n", server.getLocalSocketAddress(), annotators.size());
+	try {
+	    while(true) {
+		final Socket socket = server.accept();
+		socket.setTcpNoDelay(true);
+		final int id = connections.incrementAndGet();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+			    handle(socket, id);
+			}
+		    }, "server-connection-" + id);
+		t.setDaemon(true);
+		t.start();
+	    }
+	} finally {
+	    server.close();
+	}
+    }
+
+    // reads requests on this thread, writes answers on another, in order
+    private void handle(final Socket socket, final int id) {
+	final BlockingQueue<Request> answers = new LinkedBlockingQueue<Request>();
+	Thread writer = new Thread(new Runnable() {
+		public void run() {
+		    answer(socket, id, answers);
+		}
+	    }, "server-connection-" + id + "-writer");
+	writer.setDaemon(true);
+	writer.start();
+	int n = 0;
+	try {
+	    InputStream in = new BufferedInputStream(socket.getInputStream());
+	    Communication comm;
+	    while(!socket.isClosed() && (comm = Communication.parseDelimitedFrom(in)) != null) {
+		Request request = new Request(comm);
+		if(admission != null)
+		    request.admitted = admission.acquire(comm);
+		answers.put(request);
+		requests.put(request);
+		n++;
+	    }
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} catch(IOException e) {
+	    if(!socket.isClosed())
+		System.err.println("connection " + id + ": " + e);
+	} finally {
+	    answers.add(END);
+	}
+	if(debug)
+	    System.err.println("connection " + id + ": " + n + " request(s) read");
+    }
+
+    private void answer(Socket socket, int id, BlockingQueue<Request> answers) {
+	try {
+	    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+	    while(true) {
+		// flush whenever we're about to wait, so pipelined answers go out together
+		Request request = answers.poll();
+		if(request == null) {
+		    out.flush();
+		    request = answers.take();
+		}
+		if(request == END)
+		    break;
+		request.await().writeDelimitedTo(out);
+		REQUEST.since(request.received);
+	    }
+	    out.flush();
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} catch(IOException e) {
+	    System.err.println("connection " + id + ": " + e + (e.getCause() == null ? "" : ": " + e.getCause()));
+	} finally {
+	    try {
+		socket.close();
+	    } catch(IOException e) {
+		// nothing left to do with it
+	    }
+	}
+    }
+
+    private void work(CommunicationAnnotator annotator) {
+	List<Request> batch = new ArrayList<Request>(maxBatch);
+	while(true) {
+	    batch.clear();
+	    try {
+		batch.add(requests.take());
+		// no more than our share, so the other workers get some too
+		int share = requests.size() / annotators.size();
+		requests.drainTo(batch, Math.min(maxBatch - 1, share));
+	    } catch(InterruptedException e) {
+		return;
+	    }
+	    batches.incrementAndGet();
+	    batched.addAndGet(batch.size());
+	    for(Request request : batch) {
+		try {
+		    request.result = annotator.annotate(request.comm);
+		    PipelineMetrics.countCommunication();
+		} catch(Throwable t) {
+		    failed.incrementAndGet();
+		    request.failure = t;
+		} finally {
+		    if(admission != null)
+			admission.release(request.admitted);
+		    request.done.countDown();
+		}
+	    }
+	}
+    }
+
+    /** Connections, requests, batches and failures so far. */
+    public String stats() {
+	long b = batches.get();
+	return String.format("server: %d connections, %d requests in %d batches (%.2f per batch), %d failed",
+			     connections.get(), batched.get(), b, b == 0 ? 0.0 : (double) batched.get() / b,
+			     failed.get());
+    }
+}
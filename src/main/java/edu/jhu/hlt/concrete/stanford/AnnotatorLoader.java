@@ -0,0 +1,148 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.nlp.dcoref.DeterministicCorefAnnotator;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.pipeline.MorphaAnnotator;
+import edu.stanford.nlp.pipeline.NERCombinerAnnotator;
+import edu.stanford.nlp.pipeline.POSTaggerAnnotator;
+import edu.stanford.nlp.pipeline.ParserAnnotator;
+
+/**
+ * Loads the CoreNLP annotators (and their models) concurrently, on a few
+ * background threads, instead of one after another in the StanfordCoreNLP
+ * constructor. Reading and tokenization go ahead meanwhile; get() blocks
+ * only if the annotator asked for hasn't finished loading.
+ *
+ * One set of annotators is shared by the whole JVM, like the ones behind
+ * StanfordCoreNLP.getExistingAnnotator.
+ */
+public class AnnotatorLoader {
+
+    private static final Map<String, Future<Annotator>> loading = new LinkedHashMap<String, Future<Annotator>>();
+    private static final Map<String, Long> loadNanos = new LinkedHashMap<String, Long>();
+    private static final AtomicLong waitNanos = new AtomicLong();
+    private static long startNanos;
+    private static long doneNanos;
+    private static ExecutorService executor;
+
+    private AnnotatorLoader() {
+    }
+
+    /**
+     * Start loading stages (each one of pos, lemma, parse, ner, dcoref) on
+     * up to threads threads. Stages already loading are skipped.
+     */
+    public static synchronized void start(String[] stages, int threads) {
+	if(executor == null) {
+	    startNanos = System.nanoTime();
+	    final AtomicInteger n = new AtomicInteger();
+	    executor = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "annotator-loader-" + n.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+	}
+	// biggest models first, so the longest load starts right away
+	for(String stage : new String[] {"dcoref", "ner", "parse", "pos", "lemma"}) {
+	    if(loading.containsKey(stage))
+		continue;
+	    for(final String wanted : stages) {
+		if(!wanted.equals(stage))
+		    continue;
+		loading.put(stage, executor.submit(new Callable<Annotator>() {
+			public Annotator call() throws Exception {
+			    long start = System.nanoTime();
+			    Annotator annotator = create(wanted);
+			    loaded(wanted, start);
+			    return annotator;
+			}
+		    }));
+	    }
+	}
+    }
+
+    /**
+     * The annotator for stage, waiting for it to load if need be, or null if
+     * start() was never asked for it.
+     */
+    public static Annotator get(String stage) {
+	Future<Annotator> future;
+	synchronized(AnnotatorLoader.class) {
+	    future = loading.get(stage);
+	}
+	if(future == null)
+	    return null;
+	if(future.isDone())
+	    return result(stage, future);
+	long start = System.nanoTime();
+	try {
+	    return result(stage, future);
+	} finally {
+	    waitNanos.addAndGet(System.nanoTime() - start);
+	}
+    }
+
+    private static Annotator result(String stage, Future<Annotator> future) {
+	try {
+	    return future.get();
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException("interrupted while loading " + stage, e);
+	} catch(ExecutionException e) {
+	    throw new RuntimeException("couldn't load annotator " + stage, e.getCause());
+	}
+    }
+
+    private static Annotator create(String stage) throws Exception {
+	if(stage.equals("pos"))
+	    return new POSTaggerAnnotator(false);
+	if(stage.equals("lemma"))
+	    return new MorphaAnnotator(false);
+	if(stage.equals("parse"))
+	    return new ParserAnnotator(false, -1);
+	if(stage.equals("ner"))
+	    return new NERCombinerAnnotator();
+	if(stage.equals("dcoref"))
+	    return new DeterministicCorefAnnotator(new Properties());
+	throw new IllegalArgumentException("don't know how to load annotator " + stage);
+    }
+
+    private static synchronized void loaded(String stage, long start) {
+	long now = System.nanoTime();
+	loadNanos.put(stage, now - start);
+	doneNanos = now;
+    }
+
+    /**
+     * Load time of each annotator, when the last one finished (relative to
+     * start()), and the total time callers spent waiting for them.
+     */
+    public static synchronized String stats() {
+	if(executor == null)
+	    return "annotator loading: none";
+	StringBuilder sb = new StringBuilder("annotator loading:");
+	for(Map.Entry<String, Long> e : loadNanos.entrySet())
+	    sb.append(String.format(" %s %.1fs", e.getKey(), e.getValue() / 1e9));
+	sb.append(String.format("; %d of %d loaded", loadNanos.size(), loading.size()));
+	if(loadNanos.size() == loading.size())
+	    sb.append(String.format(" %.1fs after start", (doneNanos - startNanos) / 1e9));
+	sb.append(String.format(", %.1fs spent waiting for them",
+				TimeUnit.NANOSECONDS.toMillis(waitNanos.get()) / 1000.0));
+	return sb.toString();
+    }
+}
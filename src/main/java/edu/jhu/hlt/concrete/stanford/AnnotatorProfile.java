@@ -0,0 +1,126 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which CoreNLP stages to run after tokenize and ssplit, with their
+ * prerequisites filled in. Given as a named profile or a comma separated
+ * list of stages, e.g. "pos,ner" (which also runs lemma).
+ *
+ *   tokenize   nothing (same as --only-tokenize t)
+ *   pos        pos, lemma
+ *   pos-ner    pos, lemma, ner
+ *   parse      pos, lemma, parse
+ *   parse-ner  pos, lemma, parse, ner
+ *   full       pos, lemma, parse, ner, dcoref (the default)
+ */
+public class AnnotatorProfile {
+
+    // every stage, in the order they run
+    static final List<String> ALL_STAGES = Arrays.asList("pos", "lemma", "parse", "ner", "dcoref");
+    // stages that work one sentence at a time; the others need the whole document
+    private static final List<String> SENTENCE_LEVEL = Arrays.asList("pos", "lemma", "parse");
+
+    private static final Map<String, String[]> REQUIRES = new LinkedHashMap<String, String[]>();
+    private static final Map<String, String> PROFILES = new LinkedHashMap<String, String>();
+    static {
+	REQUIRES.put("pos", new String[0]);
+	REQUIRES.put("lemma", new String[] {"pos"});
+	REQUIRES.put("parse", new String[] {"pos"});
+	REQUIRES.put("ner", new String[] {"pos", "lemma"});
+	REQUIRES.put("dcoref", new String[] {"pos", "lemma", "parse", "ner"});
+
+	PROFILES.put("tokenize", "");
+	PROFILES.put("pos", "pos,lemma");
+	PROFILES.put("pos-ner", "pos,lemma,ner");
+	PROFILES.put("parse", "pos,lemma,parse");
+	PROFILES.put("parse-ner", "pos,lemma,parse,ner");
+	PROFILES.put("full", "pos,lemma,parse,ner,dcoref");
+    }
+
+    public static final AnnotatorProfile FULL = forName("full");
+    public static final AnnotatorProfile TOKENIZE = forName("tokenize");
+
+    private final String name;
+    private final Set<String> stages;
+    private final String[] sentenceLevelStages;
+    private final String[] documentLevelStages;
+
+    private AnnotatorProfile(String name, Set<String> stages) {
+	this.name = name;
+	this.stages = stages;
+	List<String> sentenceLevel = new ArrayList<String>();
+	List<String> documentLevel = new ArrayList<String>();
+	for(String stage : ALL_STAGES) {
+	    if(!stages.contains(stage))
+		continue;
+	    if(SENTENCE_LEVEL.contains(stage))
+		sentenceLevel.add(stage);
+	    else
+		documentLevel.add(stage);
+	}
+	this.sentenceLevelStages = sentenceLevel.toArray(new String[0]);
+	this.documentLevelStages = documentLevel.toArray(new String[0]);
+    }
+
+    /**
+     * A profile name, or stages separated by commas (tokenize and ssplit
+     * are implied and may be left out).
+     */
+    public static AnnotatorProfile forName(String spec) {
+	String list = PROFILES.containsKey(spec) ? PROFILES.get(spec) : spec;
+	Set<String> wanted = new LinkedHashSet<String>();
+	for(String stage : list.split(",")) {
+	    stage = stage.trim();
+	    if(stage.isEmpty() || stage.equals("tokenize") || stage.equals("ssplit"))
+		continue;
+	    if(!REQUIRES.containsKey(stage))
+		throw new IllegalArgumentException("unknown annotator or profile " + stage
+						   + " (profiles: " + PROFILES.keySet() + ")");
+	    addWithRequirements(stage, wanted);
+	}
+	// canonical order
+	Set<String> stages = new LinkedHashSet<String>();
+	for(String stage : ALL_STAGES)
+	    if(wanted.contains(stage))
+		stages.add(stage);
+	return new AnnotatorProfile(spec, stages);
+    }
+
+    private static void addWithRequirements(String stage, Set<String> stages) {
+	for(String required : REQUIRES.get(stage))
+	    addWithRequirements(required, stages);
+	stages.add(stage);
+    }
+
+    public boolean has(String stage) {
+	return stages.contains(stage);
+    }
+
+    /** true if nothing runs beyond tokenize and ssplit */
+    public boolean isTokenizeOnly() {
+	return stages.isEmpty();
+    }
+
+    public String[] stages() {
+	return stages.toArray(new String[0]);
+    }
+
+    public String[] sentenceLevelStages() {
+	return sentenceLevelStages.clone();
+    }
+
+    public String[] documentLevelStages() {
+	return documentLevelStages.clone();
+    }
+
+    public String toString() {
+	return name + " " + stages;
+    }
+}
@@ -0,0 +1,340 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Writes varint length-delimited Communications, like ProtocolBufferWriter,
+ * but off the caller's thread: write() only queues the Communication.
+ *
+ * One thread serializes into a buffer while a second writes (and
+ * compresses) the previous one, so serialization, compression and disk I/O
+ * overlap with each other and with annotation. The output can be
+ *   NONE:  plain, readable by ProtocolBufferReader
+ *   GZIP:  a single gzip stream
+ *   BLOCK: each buffer is its own gzip member; the concatenation is still
+ *          a valid gzip file, and every block ends at a Communication
+ * CommunicationStreamReader reads all three.
+ *
+ * sync() makes everything written so far durable and returns the file
+ * length at that point, which (for NONE and BLOCK) is a place the file can
+ * later be truncated to and appended at.
+ */
+public class AsyncCommunicationWriter implements CommunicationPool.Sink, Closeable {
+
+    public enum Compression { NONE, GZIP, BLOCK }
+
+    static final int DEFAULT_BUFFER_BYTES = 4 << 20;
+
+    private static final Object END = new Object();
+    private static final ByteArrayOutputStream END_BUFFER = new ByteArrayOutputStream(0);
+    // magic, deflate, no flags, no mtime, no extra flags, OS unknown
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // Communications already serialized elsewhere, copied as they are
+    private static class Serialized {
+	final ByteArrayOutputStream bytes;
+	final int communications;
+
+	Serialized(ByteArrayOutputStream bytes, int communications) {
+	    this.bytes = bytes;
+	    this.communications = communications;
+	}
+    }
+
+    // a request, passed along behind the data before it, to fsync the file
+    private static class Sync {
+	final CountDownLatch done = new CountDownLatch(1);
+	volatile long fileBytes;
+    }
+
+    private final Compression compression;
+    private final int bufferBytes;
+    private final FileOutputStream file;
+    private final OutputStream out;
+
+    // Communications waiting to be serialized
+    private final BlockingQueue<Object> pending;
+    // buffers (and Syncs) waiting to be written, and written buffers ready for reuse
+    private final BlockingQueue<Object> full = new ArrayBlockingQueue<Object>(2);
+    private final BlockingQueue<ByteArrayOutputStream> empty = new ArrayBlockingQueue<ByteArrayOutputStream>(2);
+
+    private final Thread serializer;
+    private final Thread flusher;
+    private volatile Throwable failure;
+    private volatile long communications = 0;
+    private volatile long rawBytes = 0;
+    private volatile long fileBytes = 0;
+    private boolean closed = false;
+
+    /**
+     * @param queueSize how many Communications write() may queue before
+     *        blocking
+     */
+    public AsyncCommunicationWriter(File path, Compression compression, int bufferBytes, int queueSize)
+	throws IOException {
+	this(path, compression, bufferBytes, queueSize, -1);
+    }
+
+    /**
+     * @param appendAt if not negative, truncate the existing file at path to
+     *        this many bytes (a value returned by sync()) and append to it
+     */
+    public AsyncCommunicationWriter(File path, Compression compression, int bufferBytes, int queueSize,
+				    long appendAt) throws IOException {
+	if(appendAt >= 0 && compression == Compression.GZIP)
+	    throw new IllegalArgumentException("can't append to a single gzip stream");
+	this.compression = compression;
+	this.bufferBytes = bufferBytes;
+	if(appendAt >= 0) {
+	    RandomAccessFile raf = new RandomAccessFile(path, "rw");
+	    try {
+		if(raf.length() < appendAt)
+		    throw new IOException(path + " is shorter than " + appendAt + " bytes");
+		raf.setLength(appendAt);
+	    } finally {
+		raf.close();
+	    }
+	    this.fileBytes = appendAt;
+	}
+	this.file = new FileOutputStream(path, appendAt >= 0);
+	OutputStream buffered = new BufferedOutputStream(file, 64 * 1024);
+	this.out = compression == Compression.GZIP ? new GZIPOutputStream(buffered, 64 * 1024) : buffered;
+	this.pending = new ArrayBlockingQueue<Object>(Math.max(queueSize, 1));
+	empty.add(new ByteArrayOutputStream(bufferBytes + bufferBytes / 4));
+
+	serializer = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			serialize();
+		    } catch(InterruptedException e) {
+			// closed after a failure
+		    } catch(Throwable t) {
+			fail(t);
+		    }
+		}
+	    }, "comm-serializer");
+	flusher = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			flush();
+		    } catch(InterruptedException e) {
+			// closed after a failure
+		    } catch(Throwable t) {
+			fail(t);
+		    }
+		}
+	    }, "comm-writer");
+	serializer.setDaemon(true);
+	flusher.setDaemon(true);
+	serializer.start();
+	flusher.start();
+    }
+
+    public AsyncCommunicationWriter(File path, Compression compression) throws IOException {
+	this(path, compression, DEFAULT_BUFFER_BYTES, 64);
+    }
+
+    /** Queue comm to be written; blocks while the queue is full. */
+    public void write(Communication comm) throws IOException {
+	write((Object) comm);
+    }
+
+    /**
+     * Queue communications length-delimited Communications, already
+     * serialized into bytes, to be copied to the output in one piece: no
+     * other write comes between them. bytes must not be changed afterwards.
+     */
+    public void writeSerialized(ByteArrayOutputStream bytes, int communications) throws IOException {
+	write(new Serialized(bytes, communications));
+    }
+
+    private void write(Object comm) throws IOException {
+	checkFailure();
+	try {
+	    pending.put(comm);
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted while writing", e);
+	}
+    }
+
+    /**
+     * Write everything queued so far, fsync the file, and return its length.
+     * Output written after a sync() starts a new gzip block.
+     */
+    public long sync() throws IOException {
+	Sync sync = new Sync();
+	try {
+	    write(sync);
+	    while(!sync.done.await(100, TimeUnit.MILLISECONDS))
+		checkFailure();
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted while syncing", e);
+	}
+	checkFailure();
+	return sync.fileBytes;
+    }
+
+    /** Write everything queued so far and close the file. */
+    public void close() throws IOException {
+	if(closed)
+	    return;
+	closed = true;
+	try {
+	    // the serializer may die while we wait for room
+	    while(failure == null && !pending.offer(END, 100, TimeUnit.MILLISECONDS))
+		;
+	    serializer.join();
+	    flusher.join();
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    serializer.interrupt();
+	    flusher.interrupt();
+	    throw new IOException("interrupted while closing", e);
+	} finally {
+	    file.close();
+	}
+	checkFailure();
+    }
+
+    public String stats() {
+	String s = String.format("output: %d communications, %.1f MB serialized",
+				 communications, rawBytes / (1024.0 * 1024.0));
+	if(compression != Compression.NONE)
+	    s += String.format(", %.1f MB after %s compression", fileBytes / (1024.0 * 1024.0),
+			       compression.name().toLowerCase());
+	return s;
+    }
+
+    private void serialize() throws IOException, InterruptedException {
+	ByteArrayOutputStream buffer = new ByteArrayOutputStream(bufferBytes + bufferBytes / 4);
+	while(true) {
+	    Object item = pending.take();
+	    if(item == END)
+		break;
+	    if(item instanceof Sync) {
+		if(buffer.size() > 0) {
+		    full.put(buffer);
+		    buffer = empty.take();
+		    buffer.reset();
+		}
+		full.put(item);
+		continue;
+	    }
+	    if(item instanceof Serialized) {
+		Serialized serialized = (Serialized) item;
+		serialized.bytes.writeTo(buffer);
+		communications += serialized.communications;
+	    } else {
+		((Communication) item).writeDelimitedTo(buffer);
+		communications++;
+	    }
+	    if(buffer.size() >= bufferBytes) {
+		full.put(buffer);
+		buffer = empty.take();
+		buffer.reset();
+	    }
+	}
+	if(buffer.size() > 0)
+	    full.put(buffer);
+	full.put(END_BUFFER);
+    }
+
+    private void flush() throws IOException, InterruptedException {
+	// one deflater for all blocks, reset between them and ended here,
+	// rather than a GZIPOutputStream per block whose zlib memory is only
+	// freed by its finalizer
+	Deflater deflater = compression == Compression.BLOCK ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+	try {
+	    flush(deflater);
+	} finally {
+	    if(deflater != null)
+		deflater.end();
+	}
+    }
+
+    private void flush(Deflater deflater) throws IOException, InterruptedException {
+	while(true) {
+	    Object item = full.take();
+	    if(item == END_BUFFER)
+		break;
+	    if(item instanceof Sync) {
+		Sync sync = (Sync) item;
+		out.flush();
+		file.getChannel().force(true);
+		sync.fileBytes = fileBytes;
+		sync.done.countDown();
+		continue;
+	    }
+	    ByteArrayOutputStream buffer = (ByteArrayOutputStream) item;
+	    rawBytes += buffer.size();
+	    if(compression == Compression.BLOCK) {
+		writeBlock(buffer, deflater);
+	    } else {
+		buffer.writeTo(out);
+	    }
+	    out.flush();
+	    fileBytes = file.getChannel().position();
+	    empty.put(buffer);
+	}
+	if(compression == Compression.GZIP)
+	    ((GZIPOutputStream) out).finish();
+	out.flush();
+	fileBytes = file.getChannel().position();
+	out.close();
+    }
+
+    // the same gzip member GZIPOutputStream would write: header, raw
+    // deflate data, then CRC-32 and length (mod 2^32), little-endian
+    private void writeBlock(ByteArrayOutputStream buffer, Deflater deflater) throws IOException {
+	out.write(GZIP_HEADER);
+	deflater.reset();
+	CRC32 crc = new CRC32();
+	DeflaterOutputStream block = new DeflaterOutputStream(out, deflater, 64 * 1024);
+	buffer.writeTo(new CheckedOutputStream(block, crc));
+	block.finish();
+	writeIntLE((int) crc.getValue());
+	writeIntLE(buffer.size());
+    }
+
+    private void writeIntLE(int i) throws IOException {
+	out.write(i);
+	out.write(i >>> 8);
+	out.write(i >>> 16);
+	out.write(i >>> 24);
+    }
+
+    private void fail(Throwable t) {
+	if(failure == null)
+	    failure = t;
+	serializer.interrupt();
+	flusher.interrupt();
+	// unblock write()
+	pending.clear();
+    }
+
+    private void checkFailure() throws IOException {
+	Throwable t = failure;
+	if(t != null)
+	    throw t instanceof IOException ? (IOException) t : new IOException("writing failed", t);
+    }
+}
@@ -0,0 +1,174 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Annotates many input files in one JVM, so the CoreNLP models are loaded
+ * once instead of once per file.
+ *
+ * Each worker thread takes the next file and annotates its Communications
+ * in order, serializing them into memory. Once the whole file has been
+ * annotated, those bytes are handed as they are to shard (file index %
+ * number of shards) with AsyncCommunicationWriter.writeSerialized, which
+ * copies them in one piece. A shard therefore holds whole files, each in
+ * one piece, in no particular order. A file that fails is reported and
+ * skipped: none of its Communications reach the shard, so a re-run of
+ * just the failed files doesn't duplicate any.
+ */
+public class BatchCommunicationPipe {
+
+    private final List<? extends CommunicationAnnotator> workers;
+    private final boolean mmapInput;
+    private final boolean debug;
+
+    private final AtomicInteger nextFile = new AtomicInteger();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicLong communications = new AtomicLong();
+    private final List<String> failures = new ArrayList<String>();
+
+    /**
+     * @param workers one per thread; each annotates whole files
+     */
+    public BatchCommunicationPipe(List<? extends CommunicationAnnotator> workers, boolean mmapInput, boolean debug) {
+	if(workers.isEmpty())
+	    throw new IllegalArgumentException("need at least one worker");
+	this.workers = workers;
+	this.mmapInput = mmapInput;
+	this.debug = debug;
+    }
+
+    /**
+     * The files in a directory (sorted by name, skipping hidden files), or
+     * listed one per line in a file.
+     */
+    public static List<File> listInputs(File dirOrList) throws IOException {
+	List<File> inputs = new ArrayList<File>();
+	if(dirOrList.isDirectory()) {
+	    File[] files = dirOrList.listFiles();
+	    Arrays.sort(files);
+	    for(File f : files)
+		if(f.isFile() && !f.getName().startsWith("."))
+		    inputs.add(f);
+	    return inputs;
+	}
+	BufferedReader br = new BufferedReader(new FileReader(dirOrList));
+	try {
+	    String line;
+	    while((line = br.readLine()) != null) {
+		line = line.trim();
+		if(!line.isEmpty() && !line.startsWith("#"))
+		    inputs.add(new File(line));
+	    }
+	} finally {
+	    br.close();
+	}
+	return inputs;
+    }
+
+    /**
+     * Annotate every input into the shards, printing a line per file and a
+     * summary at the end.
+     * @return the number of files that failed
+     */
+    public int run(final List<File> inputs, final List<AsyncCommunicationWriter> shards) {
+	long start = System.nanoTime();
+	List<Thread> threads = new ArrayList<Thread>();
+	for(int i = 0; i < workers.size(); i++) {
+	    final CommunicationAnnotator worker = workers.get(i);
+	    Thread t = new Thread(new Runnable() {
+		    public void run() {
+			int f;
+			while((f = nextFile.getAndIncrement()) < inputs.size())
+			    annotateFile(worker, inputs, f, shards.get(f % shards.size()), shards.size());
+		    }
+		}, "batch-" + i);
+	    threads.add(t);
+	    t.start();
+	}
+	for(Thread t : threads) {
+	    try {
+		t.join();
+	    } catch(InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new RuntimeException("interrupted while waiting for batch threads", e);
+	    }
+	}
+	double seconds = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1) / 1000.0;
+	System.err.printf("Batch done: %d of %d files, %d communications in %.1f s (%.2f communications/sec), %d failed\n",
+			  inputs.size() - failures.size(), inputs.size(), communications.get(), seconds,
+			  communications.get() / seconds, failures.size());
+	for(String failure : failures)
+	    System.err.println("  FAILED " + failure);
+	return failures.size();
+    }
+
+    private void annotateFile(CommunicationAnnotator worker, List<File> inputs, int f,
+			      AsyncCommunicationWriter shard, int numShards) {
+	File file = inputs.get(f);
+	long start = System.nanoTime();
+	int n = 0;
+	boolean written = false;
+	CommunicationPool.Source source = null;
+	try {
+	    source = open(file);
+	    ByteArrayOutputStream annotatedFile = new ByteArrayOutputStream(64 * 1024);
+	    while(true) {
+		long t = System.nanoTime();
+		Communication comm = source.next();
+		PipelineMetrics.READ.since(t);
+		if(comm == null)
+		    break;
+		Communication annotated = worker.annotate(comm);
+		if(debug)
+		    System.err.println(annotated);
+		t = System.nanoTime();
+		annotated.writeDelimitedTo(annotatedFile);
+		PipelineMetrics.WRITE.since(t);
+		PipelineMetrics.countCommunication();
+		n++;
+	    }
+	    shard.writeSerialized(annotatedFile, n);
+	    written = true;
+	} catch(Exception e) {
+	    String failure = file + " after " + n + " communications: " + e;
+	    synchronized(failures) {
+		failures.add(failure);
+	    }
+	    System.err.println("Error annotating " + failure);
+	    e.printStackTrace();
+	} finally {
+	    if(source instanceof Closeable) {
+		try {
+		    ((Closeable) source).close();
+		} catch(IOException e) {
+		    // nothing more to read from it anyway
+		}
+	    }
+	}
+	if(written)
+	    communications.addAndGet(n);
+	double seconds = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1) / 1000.0;
+	System.err.printf("[%d/%d] %s: %d communications in %.1f s %s shard %d of %d\n",
+			  filesDone.incrementAndGet(), inputs.size(), file, n, seconds,
+			  written ? "->" : "NOT written to", f % numShards, numShards);
+    }
+
+    private CommunicationPool.Source open(File file) throws IOException {
+	if(mmapInput && !CommunicationStreamReader.isGzipped(file))
+	    return new MappedCommunicationReader(file, 2);
+	return CommunicationStreamReader.open(file);
+    }
+}
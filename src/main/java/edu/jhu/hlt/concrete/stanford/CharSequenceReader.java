@@ -0,0 +1,80 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A Reader over text[begin, end) that reads straight from text, so a
+ * sentence can be tokenized without first copying it out of the
+ * Communication text with substring. Not thread-safe, like StringReader.
+ */
+class CharSequenceReader extends Reader {
+
+    private final CharSequence text;
+    private final int end;
+    private int next;
+    private int mark;
+
+    CharSequenceReader(CharSequence text, int begin, int end) {
+	if(begin < 0 || end > text.length() || begin > end)
+	    throw new IndexOutOfBoundsException("[" + begin + ", " + end + ") of " + text.length());
+	this.text = text;
+	this.next = begin;
+	this.mark = begin;
+	this.end = end;
+    }
+
+    @Override
+    public int read() {
+	return next < end ? text.charAt(next++) : -1;
+    }
+
+    @Override
+    public int read(char[] buf, int off, int len) {
+	if(len == 0)
+	    return 0;
+	if(next >= end)
+	    return -1;
+	int n = Math.min(len, end - next);
+	if(text instanceof String) {
+	    ((String) text).getChars(next, next + n, buf, off);
+	} else {
+	    for(int i = 0; i < n; i++)
+		buf[off + i] = text.charAt(next + i);
+	}
+	next += n;
+	return n;
+    }
+
+    @Override
+    public long skip(long n) {
+	long skipped = Math.max(0, Math.min(n, end - next));
+	next += skipped;
+	return skipped;
+    }
+
+    @Override
+    public boolean ready() {
+	return true;
+    }
+
+    @Override
+    public boolean markSupported() {
+	return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+	mark = next;
+    }
+
+    @Override
+    public void reset() {
+	next = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+	// nothing to release
+    }
+}
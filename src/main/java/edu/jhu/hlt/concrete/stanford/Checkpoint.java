@@ -0,0 +1,89 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * How far a run got: the first communications Communications of input were
+ * annotated, and are the first outputBytes bytes of the (fsync'd) output.
+ * inputOffset is the input file offset just after them, or -1 when the
+ * input was read through a stream that doesn't know its offset.
+ *
+ * Saved as a properties file next to the output, replaced atomically.
+ */
+public class Checkpoint {
+
+    public final String input;
+    public final long inputOffset;
+    public final long communications;
+    public final long outputBytes;
+    /** true once the run finished */
+    public final boolean complete;
+
+    public Checkpoint(String input, long inputOffset, long communications, long outputBytes, boolean complete) {
+	this.input = input;
+	this.inputOffset = inputOffset;
+	this.communications = communications;
+	this.outputBytes = outputBytes;
+	this.complete = complete;
+    }
+
+    /** The checkpoint file for output. */
+    public static File fileFor(String output) {
+	return new File(output + ".checkpoint");
+    }
+
+    /** @return the checkpoint in file, or null if there is none */
+    public static Checkpoint load(File file) throws IOException {
+	if(!file.exists())
+	    return null;
+	Properties p = new Properties();
+	InputStream in = new FileInputStream(file);
+	try {
+	    p.load(in);
+	} finally {
+	    in.close();
+	}
+	try {
+	    return new Checkpoint(p.getProperty("input"),
+				  Long.parseLong(p.getProperty("inputOffset")),
+				  Long.parseLong(p.getProperty("communications")),
+				  Long.parseLong(p.getProperty("outputBytes")),
+				  Boolean.parseBoolean(p.getProperty("complete")));
+	} catch(RuntimeException e) {
+	    throw new IOException("bad checkpoint file " + file, e);
+	}
+    }
+
+    /** Write to a temporary file, fsync it and rename it over file. */
+    public void save(File file) throws IOException {
+	Properties p = new Properties();
+	p.setProperty("input", input);
+	p.setProperty("inputOffset", Long.toString(inputOffset));
+	p.setProperty("communications", Long.toString(communications));
+	p.setProperty("outputBytes", Long.toString(outputBytes));
+	p.setProperty("complete", Boolean.toString(complete));
+	File tmp = new File(file.getPath() + ".tmp");
+	FileOutputStream out = new FileOutputStream(tmp);
+	try {
+	    p.store(out, "concrete-stanford checkpoint");
+	    out.getFD().sync();
+	} finally {
+	    out.close();
+	}
+	if(!tmp.renameTo(file)) {
+	    file.delete();
+	    if(!tmp.renameTo(file))
+		throw new IOException("couldn't rename " + tmp + " to " + file);
+	}
+    }
+
+    public String toString() {
+	return String.format("%d communications of %s (input offset %d, output %d bytes)%s",
+			     communications, input, inputOffset, outputBytes, complete ? ", complete" : "");
+    }
+}
@@ -0,0 +1,15 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Takes a Communication and returns an annotated copy of it.
+ *
+ * Implementations are not expected to be thread-safe: each worker thread
+ * gets its own instance.
+ */
+public interface CommunicationAnnotator {
+
+    public Communication annotate(Communication comm);
+
+}
@@ -0,0 +1,59 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+import edu.jhu.hlt.concrete.Concrete.Section;
+import edu.jhu.hlt.concrete.Concrete.Sentence;
+
+/**
+ * A rough estimate of how long a Communication will take to annotate, from
+ * its sentence segmentation alone, before anything is run on it.
+ *
+ * Tagging and coref grow about linearly with the number of tokens, parsing
+ * much faster than linearly with sentence length, so each sentence counts
+ * t + t^2 / QUADRATIC_TOKENS for its t tokens (guessed from its length in
+ * characters). Only the relative order of the estimates matters.
+ */
+public class CommunicationCost {
+
+    // average characters per token, spaces included
+    private static final int CHARS_PER_TOKEN = 5;
+    // sentence length at which parsing starts to dominate
+    private static final int QUADRATIC_TOKENS = 20;
+
+    private CommunicationCost() {
+    }
+
+    /**
+     * The cost of the sentences of the PASSAGE sections that will be
+     * annotated; the whole text counts as one sentence if there's no sentence
+     * segmentation.
+     */
+    public static long estimate(Communication comm) {
+	return sum(comm, true);
+    }
+
+    /** The number of tokens in the same sentences, guessed from their lengths. */
+    public static long estimateTokens(Communication comm) {
+	return sum(comm, false);
+    }
+
+    private static long sum(Communication comm, boolean cost) {
+	if(comm.getSectionSegmentationCount() == 0)
+	    return sentence(comm.getText().length(), cost);
+	long sum = 0;
+	for(Section section : comm.getSectionSegmentation(0).getSectionList()) {
+	    if((section.hasKind() && section.getKind() != Section.Kind.PASSAGE)
+	       || section.getSentenceSegmentationCount() == 0)
+		continue;
+	    for(Sentence sentence : section.getSentenceSegmentation(0).getSentenceList())
+		if(sentence.hasTextSpan())
+		    sum += sentence(sentence.getTextSpan().getEnd() - sentence.getTextSpan().getStart(), cost);
+	}
+	return sum;
+    }
+
+    private static long sentence(int chars, boolean cost) {
+	long tokens = Math.max(chars / CHARS_PER_TOKEN, 1);
+	return cost ? tokens + tokens * tokens / QUADRATIC_TOKENS : tokens;
+    }
+}
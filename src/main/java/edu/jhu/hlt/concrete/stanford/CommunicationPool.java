@@ -0,0 +1,203 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Runs one CommunicationAnnotator per worker thread over a stream of
+ * Communications.
+ *
+ * A reader thread feeds a bounded queue, the workers take from it, and the
+ * calling thread writes the results back out in input order. At most
+ * capacity Communications are in flight (queued, being annotated or waiting
+ * to be written) at any time, so a single slow document cannot make the
+ * reorder buffer grow without bound.
+ *
+ * With longestFirst, the workers take the Communication with the highest
+ * CommunicationCost estimate among those queued instead of the oldest, so
+ * the queue (up to capacity Communications) acts as a lookahead window and
+ * one big document late in the input doesn't leave the other workers idle
+ * at the end. Output stays in input order unless the pool is unordered, in
+ * which case results are written as soon as they're done.
+ */
+public class CommunicationPool {
+
+    /** Where Communications come from. */
+    public interface Source {
+	/** @return the next Communication, or null at the end of the input */
+	public Communication next() throws IOException;
+    }
+
+    /** Where annotated Communications go, in input order. */
+    public interface Sink {
+	public void write(Communication comm) throws IOException;
+    }
+
+    private static class Item {
+	final long seq;
+	final Communication comm;
+	final long cost;
+	long admitted;
+	Item(long seq, Communication comm, long cost) {
+	    this.seq = seq;
+	    this.comm = comm;
+	    this.cost = cost;
+	}
+    }
+    // sorts after every Communication
+    private static final Item END = new Item(Long.MAX_VALUE, null, Long.MIN_VALUE);
+
+    // highest cost first, then oldest first
+    private static final Comparator<Item> MOST_EXPENSIVE_FIRST = new Comparator<Item>() {
+	public int compare(Item a, Item b) {
+	    if(a.cost != b.cost)
+		return a.cost > b.cost ? -1 : 1;
+	    return a.seq < b.seq ? -1 : a.seq > b.seq ? 1 : 0;
+	}
+    };
+
+    private final List<? extends CommunicationAnnotator> annotators;
+    private final int capacity;
+    private final boolean longestFirst;
+    private final boolean ordered;
+    private final boolean debug;
+    private AdmissionController admission = null;
+
+    private BlockingQueue<Item> workQueue;
+    private ReorderBuffer<Communication> results;
+    private Semaphore inFlight;
+    private List<Thread> threads;
+
+    public CommunicationPool(List<? extends CommunicationAnnotator> annotators, int capacity, boolean debug) {
+	this(annotators, capacity, false, true, debug);
+    }
+
+    /**
+     * @param longestFirst dispatch the most expensive queued Communication first
+     * @param ordered write the results in input order
+     */
+    public CommunicationPool(List<? extends CommunicationAnnotator> annotators, int capacity,
+			     boolean longestFirst, boolean ordered, boolean debug) {
+	if(annotators.isEmpty())
+	    throw new IllegalArgumentException("need at least one annotator");
+	if(capacity < annotators.size())
+	    throw new IllegalArgumentException("capacity (" + capacity + ") must be at least the number of workers ("
+					       + annotators.size() + ")");
+	this.annotators = annotators;
+	this.capacity = capacity;
+	this.longestFirst = longestFirst;
+	this.ordered = ordered;
+	this.debug = debug;
+    }
+
+    /** Hold up reading while admission says the work in flight is too big. */
+    public void setAdmissionController(AdmissionController admission) {
+	this.admission = admission;
+    }
+
+    /**
+     * Annotate everything in source and write it to sink.
+     * @return the number of Communications written
+     */
+    public int run(final Source source, Sink sink) throws IOException {
+	// the inFlight permits bound the priority queue too
+	workQueue = longestFirst
+	    ? new PriorityBlockingQueue<Item>(capacity + annotators.size(), MOST_EXPENSIVE_FIRST)
+	    : new ArrayBlockingQueue<Item>(capacity);
+	results = new ReorderBuffer<Communication>(ordered);
+	inFlight = new Semaphore(capacity);
+	threads = new ArrayList<Thread>();
+
+	threads.add(new Thread(new Runnable() {
+		public void run() {
+		    read(source);
+		}
+	    }, "comm-reader"));
+	for(int i = 0; i < annotators.size(); i++) {
+	    final CommunicationAnnotator annotator = annotators.get(i);
+	    threads.add(new Thread(new Runnable() {
+		    public void run() {
+			work(annotator);
+		    }
+		}, "comm-worker-" + i));
+	}
+	for(Thread t : threads) {
+	    t.setDaemon(true);
+	    t.start();
+	}
+
+	int written = 0;
+	boolean done = false;
+	try {
+	    Communication comm;
+	    while((comm = results.take()) != null) {
+		sink.write(comm);
+		inFlight.release();
+		written++;
+	    }
+	    done = true;
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted while waiting for results", e);
+	} finally {
+	    if(!done)
+		for(Thread t : threads)
+		    t.interrupt();
+	}
+	return written;
+    }
+
+    private void read(Source source) {
+	long seq = 0;
+	try {
+	    while(true) {
+		inFlight.acquire();
+		Communication comm = source.next();
+		if(comm == null)
+		    break;
+		Item item = new Item(seq++, comm, longestFirst ? CommunicationCost.estimate(comm) : 0);
+		if(admission != null)
+		    item.admitted = admission.acquire(comm);
+		workQueue.put(item);
+	    }
+	    results.finish(seq);
+	    for(int i = 0; i < annotators.size(); i++)
+		workQueue.put(END);
+	} catch(InterruptedException e) {
+	    // another thread failed and is shutting us down
+	} catch(Throwable t) {
+	    results.fail(t);
+	}
+    }
+
+    private void work(CommunicationAnnotator annotator) {
+	try {
+	    while(true) {
+		Item item = workQueue.take();
+		if(item == END)
+		    break;
+		if(debug)
+		    System.err.println(Thread.currentThread().getName() + " annotating communication #" + item.seq
+				       + (longestFirst ? " (cost " + item.cost + ")" : ""));
+		try {
+		    results.put(item.seq, annotator.annotate(item.comm));
+		} finally {
+		    if(admission != null)
+			admission.release(item.admitted);
+		}
+	    }
+	} catch(InterruptedException e) {
+	    // another thread failed and is shutting us down
+	} catch(Throwable t) {
+	    results.fail(t);
+	}
+    }
+}
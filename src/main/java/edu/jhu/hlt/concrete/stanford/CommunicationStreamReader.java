@@ -0,0 +1,52 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Reads varint length-delimited Communications from a stream. open()
+ * recognizes gzip input (either kind of AsyncCommunicationWriter
+ * compression) by its magic number, so compressed output can be fed back in.
+ */
+public class CommunicationStreamReader implements CommunicationPool.Source, Closeable {
+
+    private final InputStream in;
+
+    public CommunicationStreamReader(InputStream in) {
+	this.in = in;
+    }
+
+    /** Open file, decompressing it if it is gzipped. */
+    public static CommunicationStreamReader open(File file) throws IOException {
+	InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+	if(isGzipped(file))
+	    in = new BufferedInputStream(new GZIPInputStream(in, 64 * 1024), 64 * 1024);
+	return new CommunicationStreamReader(in);
+    }
+
+    /** Whether file starts with the gzip magic number. */
+    public static boolean isGzipped(File file) throws IOException {
+	InputStream in = new FileInputStream(file);
+	try {
+	    return in.read() == 0x1f && in.read() == 0x8b;
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** @return the next Communication, or null at the end of the stream */
+    public Communication next() throws IOException {
+	return Communication.parseDelimitedFrom(in);
+    }
+
+    public void close() throws IOException {
+	in.close();
+    }
+}
@@ -0,0 +1,236 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.jhu.hlt.concrete.Concrete.Entity;
+import edu.jhu.hlt.concrete.Concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.Concrete.EntitySet;
+import edu.jhu.hlt.concrete.Concrete.Tokenization;
+import edu.stanford.nlp.dcoref.CorefChain;
+import edu.stanford.nlp.dcoref.CorefChain.CorefMention;
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations.CorefChainAnnotation;
+import edu.stanford.nlp.dcoref.Dictionaries.MentionType;
+import edu.stanford.nlp.ling.CoreAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokenBeginAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokenEndAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Bounds the size of the documents ner and dcoref see. An aggregate with
+ * more sentences or tokens than allowed is cut, at sentence boundaries, into
+ * windows that are annotated one after another, so dcoref's time and memory
+ * (superlinear in the number of mentions) stay bounded however many sections
+ * end up in one aggregate.
+ *
+ * Chains from different windows can optionally be linked into one Entity
+ * when their representative mentions are the same proper name; anything
+ * less certain is left in separate Entities.
+ *
+ * The chains of a split document are put on it as a WindowedCorefAnnotation
+ * instead of a CorefChainAnnotation.
+ */
+public class CorefWindows {
+
+    /** One dcoref chain, found in the window starting at sentence firstSentence. */
+    public static class WindowChain {
+	public final int firstSentence;
+	public final CorefChain chain;
+
+	WindowChain(int firstSentence, CorefChain chain) {
+	    this.firstSentence = firstSentence;
+	    this.chain = chain;
+	}
+    }
+
+    /** The chains of a split document, grouped into entities, in order of first mention. */
+    public static class WindowedCoref {
+	public final List<List<WindowChain>> entities = new ArrayList<List<WindowChain>>();
+    }
+
+    public static class WindowedCorefAnnotation implements CoreAnnotation<WindowedCoref> {
+	public Class<WindowedCoref> getType() {
+	    return WindowedCoref.class;
+	}
+    }
+
+    private final int maxSentences;
+    private final int maxTokens;
+    private final boolean linkAcrossWindows;
+
+    private final AtomicLong split = new AtomicLong();
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+
+    /**
+     * @param maxSentences most sentences per window, or 0 for no limit
+     * @param maxTokens most tokens per window, or 0 for no limit (a single
+     *        longer sentence still gets a window of its own)
+     * @param linkAcrossWindows merge chains from different windows with the
+     *        same proper name as representative mention
+     */
+    public CorefWindows(int maxSentences, int maxTokens, boolean linkAcrossWindows) {
+	this.maxSentences = maxSentences;
+	this.maxTokens = maxTokens;
+	this.linkAcrossWindows = linkAcrossWindows;
+    }
+
+    public static boolean isWindowed(Annotation document) {
+	return document.get(WindowedCorefAnnotation.class) != null;
+    }
+
+    /**
+     * Run the document level stages (ner and dcoref) on document, a window at
+     * a time if it's over the limits. Returns the number of windows.
+     */
+    public int annotate(Annotation document) {
+	List<CoreMap> sentences = document.get(SentencesAnnotation.class);
+	List<int[]> ranges = split(sentences);
+	if(ranges.size() <= 1) {
+	    InMemoryAnnoPipeline.runDocumentLevelStages(document);
+	    return 1;
+	}
+	List<Map<Integer, CorefChain>> chains = new ArrayList<Map<Integer, CorefChain>>(ranges.size());
+	for(int[] range : ranges) {
+	    List<CoreMap> part = sentences.subList(range[0], range[1]);
+	    // token offsets relative to the window while it's annotated
+	    int[] tokenBegins = new int[part.size()];
+	    List<CoreLabel> tokens = new ArrayList<CoreLabel>();
+	    for(int i = 0; i < part.size(); i++) {
+		CoreMap sentence = part.get(i);
+		List<CoreLabel> sentenceTokens = sentence.get(TokensAnnotation.class);
+		Integer begin = sentence.get(TokenBeginAnnotation.class);
+		tokenBegins[i] = begin == null ? -1 : begin;
+		sentence.set(TokenBeginAnnotation.class, tokens.size());
+		sentence.set(TokenEndAnnotation.class, tokens.size() + sentenceTokens.size());
+		tokens.addAll(sentenceTokens);
+	    }
+	    Annotation window = new Annotation((String) null);
+	    window.set(SentencesAnnotation.class, part);
+	    window.set(TokensAnnotation.class, tokens);
+	    try {
+		InMemoryAnnoPipeline.runDocumentLevelStages(window);
+	    } finally {
+		for(int i = 0; i < part.size(); i++) {
+		    if(tokenBegins[i] < 0)
+			continue;
+		    CoreMap sentence = part.get(i);
+		    sentence.set(TokenBeginAnnotation.class, tokenBegins[i]);
+		    sentence.set(TokenEndAnnotation.class, tokenBegins[i] + sentence.get(TokensAnnotation.class).size());
+		}
+	    }
+	    chains.add(window.get(CorefChainAnnotation.class));
+	}
+	split.incrementAndGet();
+	windows.addAndGet(ranges.size());
+	if(chains.get(0) != null)
+	    document.set(WindowedCorefAnnotation.class, group(ranges, chains));
+	return ranges.size();
+    }
+
+    /** [first, end) sentence ranges, as long as the limits allow. */
+    List<int[]> split(List<CoreMap> sentences) {
+	List<int[]> ranges = new ArrayList<int[]>();
+	int first = 0;
+	int tokens = 0;
+	for(int i = 0; i < sentences.size(); i++) {
+	    int n = sentences.get(i).get(TokensAnnotation.class).size();
+	    boolean full = (maxSentences > 0 && i - first >= maxSentences)
+		|| (maxTokens > 0 && tokens + n > maxTokens);
+	    if(full && i > first) {
+		ranges.add(new int[] {first, i});
+		first = i;
+		tokens = 0;
+	    }
+	    tokens += n;
+	}
+	if(first < sentences.size())
+	    ranges.add(new int[] {first, sentences.size()});
+	return ranges;
+    }
+
+    private WindowedCoref group(List<int[]> ranges, List<Map<Integer, CorefChain>> chains) {
+	WindowedCoref coref = new WindowedCoref();
+	// proper name -> the entity using it, and the last window it was seen in
+	Map<String, List<WindowChain>> byName = new HashMap<String, List<WindowChain>>();
+	Map<String, Integer> lastWindow = new HashMap<String, Integer>();
+	for(int w = 0; w < ranges.size(); w++) {
+	    if(chains.get(w) == null)
+		continue;
+	    for(CorefChain chain : new TreeMap<Integer, CorefChain>(chains.get(w)).values()) {
+		// singletons are left out, as in convertCoref
+		if(chain.getMentionsInTextualOrder().size() <= 1)
+		    continue;
+		WindowChain member = new WindowChain(ranges.get(w)[0], chain);
+		String name = linkAcrossWindows ? properName(chain) : null;
+		List<WindowChain> entity = name == null ? null : byName.get(name);
+		if(entity != null && lastWindow.get(name) != w) {
+		    entity.add(member);
+		    linked.incrementAndGet();
+		} else {
+		    entity = new ArrayList<WindowChain>();
+		    entity.add(member);
+		    coref.entities.add(entity);
+		    if(name != null && !byName.containsKey(name))
+			byName.put(name, entity);
+		}
+		if(name != null && byName.get(name) == entity)
+		    lastWindow.put(name, w);
+	    }
+	}
+	return coref;
+    }
+
+    // the representative mention's text, normalized, if it's a proper name
+    private static String properName(CorefChain chain) {
+	CorefMention representative = chain.getRepresentativeMention();
+	if(representative == null || representative.mentionType != MentionType.PROPER
+	   || representative.mentionSpan == null)
+	    return null;
+	String name = representative.mentionSpan.trim().replaceAll("\\s+", " ").toLowerCase();
+	return name.isEmpty() ? null : name;
+    }
+
+    /**
+     * Add one Entity per group of chains of a document split by annotate() to
+     * entities, and its mentions to mentions; the first chain of each group
+     * gives the canonical name.
+     *
+     * @param tokenizations the result of converter.convertSentences(document)
+     */
+    public static void convert(Annotation document, StanfordConcreteConverter converter,
+			       List<Tokenization> tokenizations,
+			       EntityMentionSet.Builder mentions, EntitySet.Builder entities) {
+	WindowedCoref coref = document.get(WindowedCorefAnnotation.class);
+	if(coref == null)
+	    return;
+	for(List<WindowChain> group : coref.entities) {
+	    Entity.Builder entity = null;
+	    for(WindowChain member : group) {
+		Entity converted = converter.convertChain(member.chain, member.chain.getMentionsInTextualOrder(),
+							  tokenizations, member.firstSentence, mentions);
+		if(entity == null)
+		    entity = converted.toBuilder();
+		else
+		    entity.addAllMention(converted.getMentionList());
+	    }
+	    entities.addEntity(entity);
+	}
+    }
+
+    /** Aggregates split, windows annotated and chains linked across windows so far. */
+    public String stats() {
+	return String.format("coref windows: %d aggregates split into %d windows (max %s sentences, %s tokens), %d chains linked across windows",
+			     split.get(), windows.get(),
+			     maxSentences > 0 ? Integer.toString(maxSentences) : "any",
+			     maxTokens > 0 ? Integer.toString(maxTokens) : "any", linked.get());
+    }
+}
@@ -3,8 +3,13 @@ package edu.jhu.hlt.concrete.stanford;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nu.xom.Attribute;
 import nu.xom.Document;
@@ -15,11 +20,15 @@ import nu.xom.Serializer;
 import edu.jhu.agiga.AgigaDocument;
 import edu.jhu.agiga.AgigaPrefs;
 import edu.jhu.agiga.BytesAgigaDocumentReader;
+import edu.stanford.nlp.dcoref.CorefChain;
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations.CorefChainAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreAnnotations.IndexAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.PartOfSpeechAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.SentenceIndexAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.Annotator;
 import edu.stanford.nlp.pipeline.ParserAnnotatorUtils;
@@ -27,6 +36,9 @@ import edu.stanford.nlp.pipeline.POSTaggerAnnotator;
 import edu.stanford.nlp.pipeline.PTBTokenizerAnnotator;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import edu.stanford.nlp.pipeline.WordsToSentencesAnnotator;
+import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
 import edu.stanford.nlp.trees.semgraph.SemanticGraph;
 import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations;
 import edu.stanford.nlp.trees.semgraph.SemanticGraphEdge;
@@ -49,37 +61,67 @@ import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.CollapsedDep
 public class InMemoryAnnoPipeline {
 
     private static final boolean debug = false;
-    private static final boolean do_deps = true;
-    // Document counter.
-    private static int docCounter;
+    // Document counter, shared by all pipelines in the JVM.
+    private static final AtomicInteger docCounter = new AtomicInteger();
+    // The annotators behind StanfordCoreNLP.getExistingAnnotator are shared
+    // by every pipeline in the JVM, and dcoref keeps per-document state in
+    // its sieve system, so only one thread may run it at a time.
+    private static final Object dcorefLock = new Object();
 
     private PTBTokenizerAnnotator ptbTokenizer;
     //private POSTaggerAnnotator posTagger;
     private WordsToSentencesAnnotator words2SentencesAnnotator;
+    // what ptbTokenizer runs, without the Annotation around it
+    private final TokenizerFactory<CoreLabel> sentenceTokenizer =
+	PTBTokenizer.factory(new CoreLabelTokenFactory(), TokenizeOnlyAnnotator.OPTIONS);
     //NOTE: we're only using this for its annotationToDoc method
     private StanfordCoreNLP pipeline;
 
-    //    private static String[] sentenceLevelStages = {"pos", "lemma", "parse"};
-    private static String[] documentLevelStages = {"pos", "lemma", "parse", "ner", "dcoref"};
+    // the stages to run, split into those that look at one sentence at a
+    // time and those that need the whole document; shared by every pipeline
+    // in the JVM, like the annotators
+    private static volatile AnnotatorProfile profile = AnnotatorProfile.FULL;
+    // smallest number of sentences worth handing to a fork-join task
+    private static final int minSentencesPerTask = 4;
+    // threads loading the annotators' models in the background
+    static final int defaultLoaderThreads = Math.min(3, Runtime.getRuntime().availableProcessors());
 
 
     public InMemoryAnnoPipeline(boolean onlyTokenize) {
-        docCounter = 0;
-
         ptbTokenizer = new PTBTokenizerAnnotator();
 	//posTagger = new POSTaggerAnnotator();
 	words2SentencesAnnotator = new WordsToSentencesAnnotator();
 	words2SentencesAnnotator.setOneSentence(true);
 
+        // the other annotators load in the background (see AnnotatorLoader),
+        // so that reading and tokenizing can start right away
         Properties props = new Properties();
         String annotatorList = "tokenize, ssplit";
-        if (!onlyTokenize)
-            annotatorList += ", pos, lemma, parse, ner, dcoref";
         if (debug) {
             System.err.println("Using annotators " + annotatorList);
         }
         props.put("annotators", annotatorList);
         pipeline = new StanfordCoreNLP(props);
+        if (!onlyTokenize)
+            startLoading(defaultLoaderThreads);
+    }
+
+    /** Run only the stages of p (and load only their models) from now on. */
+    public static void setProfile(AnnotatorProfile p) {
+        profile = p;
+    }
+
+    public static AnnotatorProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Start loading the annotators of the profile on threads threads,
+     * unless they are already loading.
+     */
+    public static void startLoading(int threads) {
+        if (!profile.isTokenizeOnly())
+            AnnotatorLoader.start(profile.stages(), threads);
     }
 
     // tokenize and "split" 
@@ -89,25 +131,49 @@ public class InMemoryAnnoPipeline {
 	words2SentencesAnnotator.annotate(sentence);
 	return sentence;
     }
+
+    /**
+     * The same tokens as annotateSentence(text.substring(begin, end)), read
+     * straight out of text rather than from a copy of the sentence. Only
+     * the tokens are set: sentencesToDocument and the stages after it read
+     * nothing else of a sentence Annotation (no sentence text, and no
+     * one-sentence SentencesAnnotation from words2SentencesAnnotator).
+     */
+    public Annotation annotateSentence(String text, int begin, int end) {
+	List<CoreLabel> tokens = sentenceTokenizer.getTokenizer(new CharSequenceReader(text, begin, end)).tokenize();
+	Annotation sentence = new Annotation((String) null);
+	sentence.set(TokensAnnotation.class, tokens);
+	return sentence;
+    }
     
     public AgigaDocument annotate(Annotation annotation) throws IOException {
         return annotate(pipeline, annotation);
     }
     
     public static AgigaDocument annotate(StanfordCoreNLP pipeline, Annotation annotation) throws IOException {
-	for(String stage : documentLevelStages){
-	    if(stage.equals("dcoref")){
-		fixNullDependencyGraphs(annotation);
-	    }
-	    try{
-		(StanfordCoreNLP.getExistingAnnotator(stage)).annotate(annotation);
-	    } catch(Exception e){
-		System.err.println("Error annotating " + stage);
-	    }
-	}
-	
+        runStages(annotation);
+        return toAgigaDoc(pipeline, annotation);
+    }
+
+    /** Convert an already annotated document, via XML, to an AgigaDocument. */
+    public AgigaDocument toAgigaDoc(Annotation annotation) throws IOException {
+        return toAgigaDoc(pipeline, annotation);
+    }
+
+    /** As above, leaving the dependencies and coref out of the XML unless in layers. */
+    public AgigaDocument toAgigaDoc(Annotation annotation, OutputLayers layers) throws IOException {
+        return toAgigaDoc(pipeline, annotation, layers);
+    }
+
+    public static AgigaDocument toAgigaDoc(StanfordCoreNLP pipeline, Annotation annotation) throws IOException {
+        return toAgigaDoc(pipeline, annotation, OutputLayers.ALL);
+    }
+
+    public static AgigaDocument toAgigaDoc(StanfordCoreNLP pipeline, Annotation annotation, OutputLayers layers)
+        throws IOException {
+        long start = System.nanoTime();
         // Convert to an XML document.
-        Document xmlDoc = stanfordToXML(pipeline, annotation);
+        Document xmlDoc = stanfordToXML(pipeline, annotation, layers);
         
         // Convert the XML document to an AgigaDocument.
         AgigaDocument agigaDoc = xmlToAgigaDoc(xmlDoc);
@@ -116,9 +182,159 @@ public class InMemoryAnnoPipeline {
 	    System.err.println("annotation has " + annotation.get(SentencesAnnotation.class).size());
 	    System.err.println("annotation has " + annotation.get(SentencesAnnotation.class));
 	}
+        PipelineMetrics.XML.since(start);
         return agigaDoc;
     }
 
+    /**
+     * Run all CoreNLP stages over annotation, in place.
+     * Use this with StanfordConcreteConverter to skip the XML/agiga round trip.
+     */
+    public static void runStages(Annotation annotation) {
+        runSentenceLevelStages(annotation);
+        runDocumentLevelStages(annotation);
+    }
+
+    /** pos, lemma and parse (those in the profile): the expensive, sentence-local stages */
+    public static void runSentenceLevelStages(Annotation annotation) {
+        runSentenceLevelStages(annotation, (ParseBudget) null);
+    }
+
+    /** As above, parsing each sentence within budget (if not null). */
+    public static void runSentenceLevelStages(Annotation annotation, ParseBudget budget) {
+        AnnotatorProfile p = profile;
+        if (budget == null || !p.has("parse")) {
+            runStages(annotation, p.sentenceLevelStages());
+        } else {
+            List<String> tagging = new ArrayList<String>();
+            for (String stage : p.sentenceLevelStages())
+                if (!stage.equals("parse"))
+                    tagging.add(stage);
+            runStages(annotation, tagging.toArray(new String[tagging.size()]));
+            budget.parse(annotation.get(SentencesAnnotation.class));
+        }
+    }
+
+    /**
+     * Same as runSentenceLevelStages(annotation), but with the sentences
+     * spread over pool. The stages write their results into the shared
+     * sentence CoreMaps and tokens, so there is nothing to merge afterwards.
+     */
+    public static void runSentenceLevelStages(Annotation annotation, ForkJoinPool pool) {
+        runSentenceLevelStages(annotation, pool, null, null);
+    }
+
+    /**
+     * As above, but sentences found in cache (if not null) skip the stages,
+     * and the others are added to it. Sentences are parsed within budget
+     * (if not null).
+     */
+    public static void runSentenceLevelStages(Annotation annotation, ForkJoinPool pool,
+                                              ParseCache cache, ParseBudget budget) {
+        List<CoreMap> sentences = annotation.get(SentencesAnnotation.class);
+        if (sentences == null) {
+            runSentenceLevelStages(annotation, budget);
+            return;
+        }
+        // cache entries hold all three
+        AnnotatorProfile p = profile;
+        if (!p.has("pos") || !p.has("lemma") || !p.has("parse"))
+            cache = null;
+        List<CoreMap> todo = sentences;
+        if (cache != null) {
+            todo = new ArrayList<CoreMap>(sentences.size());
+            for (CoreMap sentence : sentences) {
+                if (!cache.apply(sentence))
+                    todo.add(sentence);
+            }
+            if (todo.isEmpty())
+                return;
+        }
+        if (pool == null || todo.size() <= minSentencesPerTask)
+            runSentenceLevelStages(todo == sentences ? annotation : subDocument(todo), budget);
+        else
+            pool.invoke(new SentenceRangeTask(todo, 0, todo.size(), budget));
+        if (cache != null) {
+            for (CoreMap sentence : todo)
+                cache.store(sentence);
+        }
+    }
+
+    // runs the sentence level stages over sentences [from, to)
+    private static class SentenceRangeTask extends RecursiveAction {
+        private final List<CoreMap> sentences;
+        private final int from;
+        private final int to;
+        private final ParseBudget budget;
+
+        SentenceRangeTask(List<CoreMap> sentences, int from, int to, ParseBudget budget) {
+            this.sentences = sentences;
+            this.from = from;
+            this.to = to;
+            this.budget = budget;
+        }
+
+        protected void compute() {
+            if (to - from <= minSentencesPerTask) {
+                runSentenceLevelStages(subDocument(sentences.subList(from, to)), budget);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SentenceRangeTask(sentences, from, mid, budget),
+                      new SentenceRangeTask(sentences, mid, to, budget));
+        }
+    }
+
+    /** A document holding sentences, sharing their CoreMaps and tokens. */
+    static Annotation subDocument(List<CoreMap> sentences) {
+        List<CoreMap> subSentences = new ArrayList<CoreMap>(sentences);
+        int numTokens = 0;
+        for (CoreMap sentence : subSentences)
+            numTokens += sentence.get(TokensAnnotation.class).size();
+        List<CoreLabel> subTokens = new ArrayList<CoreLabel>(numTokens);
+        for (CoreMap sentence : subSentences)
+            subTokens.addAll(sentence.get(TokensAnnotation.class));
+        String docText = null;
+        Annotation document = new Annotation(docText);
+        document.set(SentencesAnnotation.class, subSentences);
+        document.set(TokensAnnotation.class, subTokens);
+        return document;
+    }
+
+    /** ner and dcoref (those in the profile) */
+    public static void runDocumentLevelStages(Annotation annotation) {
+        runStages(annotation, profile.documentLevelStages());
+    }
+
+    private static void runStages(Annotation annotation, String[] stages) {
+	for(String stage : stages){
+	    try{
+		// may wait for the model to load; not part of the stage's time
+		Annotator annotator = annotator(stage);
+		if(stage.equals("dcoref")){
+		    fixNullDependencyGraphs(annotation);
+		    synchronized(dcorefLock) {
+			long start = System.nanoTime();
+			annotator.annotate(annotation);
+			PipelineMetrics.stage(stage).since(start);
+		    }
+		} else {
+		    long start = System.nanoTime();
+		    annotator.annotate(annotation);
+		    PipelineMetrics.stage(stage).since(start);
+		}
+	    } catch(Exception e){
+		System.err.println("Error annotating " + stage + ": " + e);
+	    }
+	}
+    }
+
+    /** The shared CoreNLP annotator for stage. */
+    static Annotator annotator(String stage) {
+        Annotator annotator = AnnotatorLoader.get(stage);
+        return annotator != null ? annotator : StanfordCoreNLP.getExistingAnnotator(stage);
+    }
+
     /**
      * sentences with no dependency structure have null values for the various
      * dependency annotations. make sure these are empty dependencies instead
@@ -134,7 +350,7 @@ public class InMemoryAnnoPipeline {
 
 
     /** This method assumes only one <DOC/> is contained in the xmlDoc. */
-    private static AgigaDocument xmlToAgigaDoc(Document xmlDoc) throws UnsupportedEncodingException, IOException {
+    static AgigaDocument xmlToAgigaDoc(Document xmlDoc) throws UnsupportedEncodingException, IOException {
         // Serialize to a byte array.
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         Serializer ser = new Serializer(baos, "UTF-8");
@@ -173,10 +389,29 @@ public class InMemoryAnnoPipeline {
      * @throws IOException
      */
     public static Document stanfordToXML(StanfordCoreNLP pipeline, Annotation anno) {
+        return stanfordToXML(pipeline, anno, OutputLayers.ALL);
+    }
+
+    /**
+     * As above, but the kinds of dependency parse not in layers are left
+     * empty (and the graphs aren't regenerated if none is in layers), and
+     * without the coref layer the coreferences are left empty.
+     */
+    public static Document stanfordToXML(StanfordCoreNLP pipeline, Annotation anno, OutputLayers layers) {
         // For future versions of Stanford, we would use this:
         // Document xmlDoc = XMLOutputter.annotationToDoc(anno, pipeline);
         
-        Document xmlDoc = pipeline.annotationToDoc(anno);
+        // hide the chains from annotationToDoc so it doesn't build their XML
+        Map<Integer, CorefChain> chains = layers.has("coref") ? null : anno.get(CorefChainAnnotation.class);
+        if (chains != null)
+            anno.remove(CorefChainAnnotation.class);
+        Document xmlDoc;
+        try {
+            xmlDoc = pipeline.annotationToDoc(anno);
+        } finally {
+            if (chains != null)
+                anno.set(CorefChainAnnotation.class, chains);
+        }
 
         Element root = xmlDoc.getRootElement();
         Element docElem = (Element) root.getChild(0);
@@ -185,7 +420,7 @@ public class InMemoryAnnoPipeline {
         docElem.setLocalName("DOC");
         
         // Add empty id and type attributes to the <DOC>.
-        docElem.addAttribute(new Attribute("id", Integer.toString(docCounter++)));
+        docElem.addAttribute(new Attribute("id", Integer.toString(docCounter.getAndIncrement())));
         docElem.addAttribute(new Attribute("type", "NONE"));
         
         // Add an empty id attribute to each sentence. 
@@ -197,6 +432,10 @@ public class InMemoryAnnoPipeline {
         
         // rename coreference parent tag to "coreferences"
         Element corefElem = docElem.getFirstChildElement("coreference");
+        if (corefElem != null && !layers.has("coref")) {
+            docElem.removeChild(corefElem);
+            corefElem = null;
+        }
         // because StanfordCoreNLP.annotationToDoc() only appends the coref
         // element if it is nonempty (per Ben's request)
         if (corefElem == null) {
@@ -206,7 +445,7 @@ public class InMemoryAnnoPipeline {
             corefElem.setLocalName("coreferences");
         }
 
-        if (do_deps) {
+        if (layers.hasDependencies()) {
             if (debug) {
                 System.err.println("Annotating dependencies");
             }
@@ -214,8 +453,12 @@ public class InMemoryAnnoPipeline {
             // add dependency annotations (need to do it this way because
             // CoreNLP
             // does not include root annotation, and format is different from
-            // AnnotatedGigaword)
+            // AnnotatedGigaword). Sentences given a flat fallback parse
+            // by ParseBudget keep their empty graphs: there are no real
+            // dependencies to find in (ROOT (X ...)).
             for (CoreMap sentence : anno.get(SentencesAnnotation.class)) {
+                if (sentence.get(ParseBudget.ParseFallbackAnnotation.class) != null)
+                    continue;
                 try {
                     ParserAnnotatorUtils.fillInParseAnnotations(false, sentence, sentence.get(TreeAnnotation.class));
                 } catch (Exception e) {
@@ -229,22 +472,44 @@ public class InMemoryAnnoPipeline {
             Elements sentElems = docElem.getFirstChildElement("sentences").getChildElements("sentence");
             for (int i = 0; i < sentElems.size(); i++) {
                 Element thisSent = sentElems.get(i);
+                boolean fallback = sentences.get(i).get(ParseBudget.ParseFallbackAnnotation.class) != null;
                 Element basicDepElem = thisSent.getFirstChildElement("basic-dependencies");
                 basicDepElem.removeChildren();
-                SemanticGraph semGraph = sentences.get(i).get(
-                        SemanticGraphCoreAnnotations.BasicDependenciesAnnotation.class);
-                addDependencyToXML(semGraph, basicDepElem);
-                
                 Element colDepElem = thisSent.getFirstChildElement("collapsed-dependencies");
                 colDepElem.removeChildren();
-                semGraph = sentences.get(i).get(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class);
-                addDependencyToXML(semGraph, colDepElem);
-                
                 Element colCcDepElem = thisSent.getFirstChildElement("collapsed-ccprocessed-dependencies");
                 colCcDepElem.removeChildren();
-                semGraph = sentences.get(i).get(
-                        SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class);
-                addDependencyToXML(semGraph, colCcDepElem);
+                if (fallback)
+                    continue;
+
+                // kinds left out stay empty; OutputLayers.project puts
+                // placeholders in their positions
+                if (layers.has("basic-deps")) {
+                    SemanticGraph semGraph = sentences.get(i).get(
+                            SemanticGraphCoreAnnotations.BasicDependenciesAnnotation.class);
+                    addDependencyToXML(semGraph, basicDepElem);
+                }
+                if (layers.has("collapsed-deps")) {
+                    SemanticGraph semGraph = sentences.get(i).get(
+                            SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class);
+                    addDependencyToXML(semGraph, colDepElem);
+                }
+                if (layers.has("collapsed-cc-deps")) {
+                    SemanticGraph semGraph = sentences.get(i).get(
+                            SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class);
+                    addDependencyToXML(semGraph, colCcDepElem);
+                }
+            }
+        } else {
+            // what annotationToDoc wrote from the graphs as they are
+            Elements sentElems = docElem.getFirstChildElement("sentences").getChildElements("sentence");
+            for (int i = 0; i < sentElems.size(); i++) {
+                for (String kind : new String[] {"basic-dependencies", "collapsed-dependencies",
+                                                 "collapsed-ccprocessed-dependencies"}) {
+                    Element depElem = sentElems.get(i).getFirstChildElement(kind);
+                    if (depElem != null)
+                        depElem.removeChildren();
+                }
             }
         }
         
@@ -301,11 +566,11 @@ public class InMemoryAnnoPipeline {
 
     // return various annotators from the CoreNLP tools
     public Annotator nerAnnotator() {
-	return StanfordCoreNLP.getExistingAnnotator("ner");
+	return annotator("ner");
     }
 
     public Annotator dcorefAnnotator() {
-	return StanfordCoreNLP.getExistingAnnotator("dcoref");
+	return annotator("dcoref");
     }
 
 }
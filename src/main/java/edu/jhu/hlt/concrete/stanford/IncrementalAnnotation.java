@@ -0,0 +1,113 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.jhu.hlt.concrete.Concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Concrete.Communication;
+import edu.jhu.hlt.concrete.Concrete.Section;
+import edu.jhu.hlt.concrete.Concrete.Sentence;
+import edu.jhu.hlt.concrete.Concrete.Tokenization;
+
+/**
+ * Decides which section aggregates still need annotating when re-running
+ * over our own output (--incremental).
+ *
+ * Everything we add is tagged with the tool name "concrete-stanford
+ * cfg=FINGERPRINT", where the fingerprint is a hash of the settings that
+ * change the annotations (stages, parse limits, coref windows, ...). A
+ * section is current if every sentence of its first SentenceSegmentation
+ * has a Tokenization tagged with exactly our tool name; an aggregate is
+ * skipped if all of its sections are current. Otherwise the whole aggregate
+ * is annotated again, and AgigaConcreteAnnotator replaces what earlier runs
+ * (of any configuration) left on its sections. A Communication whose
+ * sections are all current isn't even tokenized.
+ */
+public class IncrementalAnnotation {
+
+    public static final String TOOL = "concrete-stanford";
+
+    private final String tool;
+    private final AtomicLong skippedCommunications = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong annotated = new AtomicLong();
+
+    /** @param tool the tool name of this run, from toolName() */
+    public IncrementalAnnotation(String tool) {
+	this.tool = tool;
+    }
+
+    /** Our tool name for a configuration, described by settings. */
+    public static String toolName(String settings) {
+	return TOOL + " cfg=" + fingerprint(settings);
+    }
+
+    // 64-bit FNV-1a: stable across JVMs, unlike Object.hashCode
+    static String fingerprint(String settings) {
+	long h = 0xcbf29ce484222325L;
+	for(int i = 0; i < settings.length(); i++) {
+	    h ^= settings.charAt(i);
+	    h *= 0x100000001b3L;
+	}
+	return String.format("%016x", h);
+    }
+
+    /** True if m was made by concrete-stanford, in any configuration. */
+    public static boolean isOurs(AnnotationMetadata m) {
+	return m.hasTool() && (m.getTool().equals(TOOL) || m.getTool().startsWith(TOOL + " "));
+    }
+
+    // our tool, possibly with a " (parse fallback: ...)" note
+    private boolean isCurrent(AnnotationMetadata m) {
+	return m.hasTool() && (m.getTool().equals(tool) || m.getTool().startsWith(tool + " ("));
+    }
+
+    /** True if every sentence of section has a Tokenization from this configuration. */
+    public boolean isCurrent(Section section) {
+	if(section.getSentenceSegmentationCount() == 0)
+	    return true;
+	for(Sentence sentence : section.getSentenceSegmentation(0).getSentenceList()) {
+	    boolean found = false;
+	    for(Tokenization tokenization : sentence.getTokenizationList())
+		if(tokenization.hasMetadata() && isCurrent(tokenization.getMetadata()))
+		    found = true;
+	    if(!found)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * True if every PASSAGE section of comm's first SectionSegmentation is
+     * current, so comm can be passed through as it is.
+     */
+    public boolean isCurrent(Communication comm) {
+	if(comm.getSectionSegmentationCount() == 0)
+	    return false;
+	for(Section section : comm.getSectionSegmentation(0).getSectionList())
+	    if((!section.hasKind() || section.getKind() == Section.Kind.PASSAGE) && !isCurrent(section))
+		return false;
+	skippedCommunications.incrementAndGet();
+	return true;
+    }
+
+    /**
+     * True if the aggregate made of sections can be passed through as it
+     * is. Counts the aggregate as skipped or annotated.
+     */
+    public boolean isCurrent(List<Section> sections) {
+	for(Section section : sections) {
+	    if(!isCurrent(section)) {
+		annotated.incrementAndGet();
+		return false;
+	    }
+	}
+	skipped.incrementAndGet();
+	return true;
+    }
+
+    public String stats() {
+	return String.format("incremental: %d communications and %d more aggregates up to date and skipped, %d aggregates annotated (%s)",
+			     skippedCommunications.get(), skipped.get(), annotated.get(), tool);
+    }
+}
@@ -0,0 +1,61 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-two nanosecond buckets: cheap
+ * enough to record every call, precise to within a factor of two, which is
+ * plenty to see where the time goes.
+ */
+public class LatencyHistogram {
+
+    // bucket i counts latencies in [2^(i-1), 2^i) ns; bucket 0 is < 1 ns
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+	if(nanos < 0)
+	    nanos = 0;
+	buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+	count.incrementAndGet();
+	totalNanos.addAndGet(nanos);
+	long max;
+	while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos))
+	    ;
+    }
+
+    public long count() {
+	return count.get();
+    }
+
+    public long totalNanos() {
+	return totalNanos.get();
+    }
+
+    public long maxNanos() {
+	return maxNanos.get();
+    }
+
+    public double meanNanos() {
+	long n = count.get();
+	return n == 0 ? 0 : (double) totalNanos.get() / n;
+    }
+
+    /** The upper bound of the bucket holding the q'th quantile (0 < q <= 1). */
+    public long percentileNanos(double q) {
+	long n = count.get();
+	if(n == 0)
+	    return 0;
+	long rank = (long) Math.ceil(q * n);
+	long seen = 0;
+	for(int i = 0; i < 64; i++) {
+	    seen += buckets.get(i);
+	    if(seen >= rank)
+		return i == 0 ? 0 : Math.min(1L << Math.min(i, 62), maxNanos.get());
+	}
+	return maxNanos.get();
+    }
+}
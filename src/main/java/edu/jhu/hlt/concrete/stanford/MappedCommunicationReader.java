@@ -0,0 +1,182 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Reads a file of varint length-delimited Communications (as written by
+ * ProtocolBufferWriter) through a memory map instead of a stream.
+ *
+ * The file is mapped in chunks of at most CHUNK_BYTES, so inputs over 2 GB
+ * work; a message that crosses the end of a chunk starts the next one. With
+ * readAhead > 0 a background thread decodes up to that many Communications
+ * ahead of the caller. Reading can start at an offset returned by
+ * offset(), to resume where an earlier reader left off.
+ */
+public class MappedCommunicationReader implements CommunicationPool.Source, Closeable {
+
+    static final long CHUNK_BYTES = 1L << 30;
+
+    private static final Object END = new Object();
+
+    // a Communication, and the file offset just after it
+    private static class Decoded {
+	final Communication comm;
+	final long end;
+	Decoded(Communication comm, long end) {
+	    this.comm = comm;
+	    this.end = end;
+	}
+    }
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long size;
+
+    // the mapped chunk and where it starts in the file
+    private MappedByteBuffer chunk;
+    private long chunkStart;
+    // the file offset of the next message
+    private long position = 0;
+    private byte[] scratch = new byte[64 * 1024];
+    // the file offset just after the last Communication returned by next()
+    private long offset;
+
+    private final BlockingQueue<Object> queue;
+    private final Thread decoder;
+    private boolean finished = false;
+
+    /**
+     * @param readAhead how many Communications to decode ahead on a
+     *        background thread, or 0 to decode in next()
+     */
+    public MappedCommunicationReader(File file, int readAhead) throws IOException {
+	this(file, readAhead, 0);
+    }
+
+    /**
+     * @param start the file offset of the first Communication to read
+     */
+    public MappedCommunicationReader(File file, int readAhead, long start) throws IOException {
+	this.raf = new RandomAccessFile(file, "r");
+	this.channel = raf.getChannel();
+	this.size = channel.size();
+	if(start < 0 || start > size)
+	    throw new IOException("offset " + start + " is outside " + file + " (" + size + " bytes)");
+	this.position = start;
+	this.offset = start;
+	if(readAhead <= 0) {
+	    queue = null;
+	    decoder = null;
+	    return;
+	}
+	queue = new ArrayBlockingQueue<Object>(readAhead);
+	decoder = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			Communication comm;
+			while((comm = decode()) != null)
+			    queue.put(new Decoded(comm, position));
+			queue.put(END);
+		    } catch(InterruptedException e) {
+			// closed
+		    } catch(Throwable t) {
+			try {
+			    queue.put(t);
+			} catch(InterruptedException e) {
+			    // closed
+			}
+		    }
+		}
+	    }, "comm-read-ahead");
+	decoder.setDaemon(true);
+	decoder.start();
+    }
+
+    /** @return the next Communication, or null at the end of the file */
+    public Communication next() throws IOException {
+	if(decoder == null) {
+	    Communication comm = decode();
+	    offset = position;
+	    return comm;
+	}
+	if(finished)
+	    return null;
+	Object item;
+	try {
+	    item = queue.take();
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted while reading", e);
+	}
+	if(item == END) {
+	    finished = true;
+	    return null;
+	}
+	if(item instanceof Throwable) {
+	    finished = true;
+	    Throwable t = (Throwable) item;
+	    throw t instanceof IOException ? (IOException) t : new IOException(t);
+	}
+	Decoded decoded = (Decoded) item;
+	offset = decoded.end;
+	return decoded.comm;
+    }
+
+    /** The file offset just after the last Communication returned by next(). */
+    public long offset() {
+	return offset;
+    }
+
+    public void close() throws IOException {
+	if(decoder != null)
+	    decoder.interrupt();
+	chunk = null;
+	raf.close();
+    }
+
+    private Communication decode() throws IOException {
+	if(position >= size)
+	    return null;
+	map(position, Math.min(5, size - position));
+	int length = 0;
+	int shift = 0;
+	int i = (int) (position - chunkStart);
+	while(true) {
+	    if(shift >= 35 || i >= chunk.limit())
+		throw new IOException("bad message length at offset " + position);
+	    byte b = chunk.get(i++);
+	    length |= (b & 0x7f) << shift;
+	    if(b >= 0)
+		break;
+	    shift += 7;
+	}
+	long start = chunkStart + i;
+	if(length < 0 || start + length > size)
+	    throw new IOException("truncated message at offset " + position);
+	map(start, length);
+	if(scratch.length < length)
+	    scratch = new byte[Math.max(length, 2 * scratch.length)];
+	chunk.position((int) (start - chunkStart));
+	chunk.get(scratch, 0, length);
+	position = start + length;
+	return Communication.newBuilder().mergeFrom(scratch, 0, length).build();
+    }
+
+    // make sure [from, from + length) is in the mapped chunk
+    private void map(long from, long length) throws IOException {
+	if(chunk != null && from >= chunkStart && from + length <= chunkStart + chunk.limit())
+	    return;
+	long bytes = Math.min(Math.max(CHUNK_BYTES, length), size - from);
+	chunk = channel.map(FileChannel.MapMode.READ_ONLY, from, bytes);
+	chunkStart = from;
+    }
+}
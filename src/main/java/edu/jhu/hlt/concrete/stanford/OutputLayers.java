@@ -0,0 +1,130 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.jhu.hlt.concrete.Concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Concrete.Tokenization;
+import edu.jhu.hlt.concrete.util.IdUtil;
+
+/**
+ * Which annotation layers are written to the output, given as "all" or a
+ * comma separated list of
+ *
+ *   pos, lemma, ner      the TokenTaggings
+ *   parse                the constituency tree
+ *   basic-deps, collapsed-deps, collapsed-cc-deps
+ *                        the three kinds of dependency parse
+ *   coref                the EntityMentionSets and EntitySets
+ *
+ * Tokens are always written. Layers left out aren't converted at all on
+ * the direct path. Via agiga, the dependency parses and coref left out
+ * are kept out of the XML; the taggings and the parse, which the agiga
+ * reader reads together, are converted and then dropped.
+ *
+ * Concrete tells the kinds of dependency parse apart only by position
+ * (basic, collapsed, collapsed-cc), so when some but not all are written,
+ * each one left out is replaced by an empty DependencyParse whose metadata
+ * tool ends in "(LAYER left out)". Readers of any one position are then
+ * never handed another kind.
+ *
+ * This only decides what is written: which stages run is up to
+ * AnnotatorProfile (--annotators).
+ */
+public class OutputLayers {
+
+    public static final List<String> ALL_LAYERS = Arrays.asList(
+	"pos", "lemma", "ner", "parse", "basic-deps", "collapsed-deps", "collapsed-cc-deps", "coref");
+    // in the order the converters add them to a Tokenization
+    static final List<String> DEPENDENCY_LAYERS = Arrays.asList("basic-deps", "collapsed-deps", "collapsed-cc-deps");
+
+    public static final OutputLayers ALL = forName("all");
+
+    private final Set<String> layers;
+
+    private OutputLayers(Set<String> layers) {
+	this.layers = layers;
+    }
+
+    /** "all", or layers separated by commas. */
+    public static OutputLayers forName(String spec) {
+	if(spec.equals("all"))
+	    return new OutputLayers(new LinkedHashSet<String>(ALL_LAYERS));
+	Set<String> wanted = new LinkedHashSet<String>();
+	for(String layer : spec.split(",")) {
+	    layer = layer.trim();
+	    if(layer.isEmpty())
+		continue;
+	    if(!ALL_LAYERS.contains(layer))
+		throw new IllegalArgumentException("unknown output layer " + layer + " (layers: " + ALL_LAYERS + ")");
+	    wanted.add(layer);
+	}
+	// canonical order
+	Set<String> layers = new LinkedHashSet<String>();
+	for(String layer : ALL_LAYERS)
+	    if(wanted.contains(layer))
+		layers.add(layer);
+	return new OutputLayers(layers);
+    }
+
+    public boolean has(String layer) {
+	return layers.contains(layer);
+    }
+
+    /** true if any kind of dependency parse is written */
+    public boolean hasDependencies() {
+	for(String layer : DEPENDENCY_LAYERS)
+	    if(layers.contains(layer))
+		return true;
+	return false;
+    }
+
+    public boolean isAll() {
+	return layers.size() == ALL_LAYERS.size();
+    }
+
+    /**
+     * tokenization without the layers left out, for converters that can't
+     * skip them (AgigaConverter).
+     */
+    public Tokenization project(Tokenization tokenization) {
+	if(isAll())
+	    return tokenization;
+	Tokenization.Builder tb = tokenization.toBuilder();
+	if(!has("pos"))
+	    tb.clearPosTags();
+	if(!has("lemma"))
+	    tb.clearLemmas();
+	if(!has("ner"))
+	    tb.clearNerTags();
+	if(!has("parse"))
+	    tb.clearParse();
+	tb.clearDependencyParse();
+	if(hasDependencies()) {
+	    for(int i = 0; i < tokenization.getDependencyParseCount(); i++) {
+		DependencyParse deps = tokenization.getDependencyParse(i);
+		if(i >= DEPENDENCY_LAYERS.size() || has(DEPENDENCY_LAYERS.get(i)))
+		    tb.addDependencyParse(deps);
+		else
+		    tb.addDependencyParse(placeholder(DEPENDENCY_LAYERS.get(i),
+						    deps.hasMetadata() ? deps.getMetadata() : tokenization.getMetadata()));
+	    }
+	}
+	return tb.build();
+    }
+
+    /** An empty DependencyParse holding the place of layer, which was left out. */
+    static DependencyParse placeholder(String layer, AnnotationMetadata metadata) {
+	return DependencyParse.newBuilder()
+	    .setUuid(IdUtil.generateUUID())
+	    .setMetadata(metadata.toBuilder().setTool(metadata.getTool() + " (" + layer + " left out)"))
+	    .build();
+    }
+
+    public String toString() {
+	return isAll() ? "all " + layers : layers.toString();
+    }
+}
@@ -0,0 +1,248 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.nlp.ling.CoreAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
+import edu.stanford.nlp.trees.TreeFactory;
+import edu.stanford.nlp.trees.semgraph.SemanticGraph;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.BasicDependenciesAnnotation;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Limits on the parse stage, per sentence: a maximum number of tokens and a
+ * wall-clock timeout.
+ *
+ * A sentence over either limit, or one the parser fails on, gets a flat
+ * (ROOT (X (tag word) ...)) tree and empty dependency graphs, and is marked
+ * with a ParseFallbackAnnotation so the Concrete conversion can flag it in
+ * its AnnotationMetadata. Processing then continues with the next sentence.
+ *
+ * With a timeout, the parser runs on a copy of the sentence (a new CoreMap
+ * with copied CoreLabels) on one of at most maxThreads threads, and its
+ * tree, dependency graphs and any tags it set are copied back only if it
+ * finishes in time. The parser does not check for interruption, so a timed
+ * out parse keeps its (daemon) thread busy until it finishes, but it only
+ * ever writes to its copy. Such threads are counted in stats(). While they
+ * hold every thread of the pool, new parses wait in its queue, and their
+ * timeout includes that wait.
+ */
+public class ParseBudget {
+
+    /** Why the sentence got a fallback parse: "length", "timeout" or "error". */
+    public static class ParseFallbackAnnotation implements CoreAnnotation<String> {
+	public Class<String> getType() {
+	    return String.class;
+	}
+    }
+
+    private static final PipelineMetrics.Stage PARSE = PipelineMetrics.stage("parse");
+
+    private final int maxTokens;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong tooLong = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // timed out parses still running on the executor's threads
+    private final AtomicInteger stuck = new AtomicInteger();
+    private final AtomicInteger maxStuck = new AtomicInteger();
+
+    /**
+     * @param maxTokens longest sentence to parse, or 0 for no limit
+     * @param timeoutMillis per sentence parse timeout, or 0 for none
+     * @param maxThreads most threads parsing with a timeout at once; give it
+     *        room for the threads calling parse() and some stuck ones
+     */
+    public ParseBudget(int maxTokens, long timeoutMillis, int maxThreads) {
+	this.maxTokens = maxTokens;
+	this.timeoutMillis = timeoutMillis;
+	if(timeoutMillis <= 0) {
+	    this.executor = null;
+	    return;
+	}
+	this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, 30, TimeUnit.SECONDS,
+					       new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		private final AtomicInteger n = new AtomicInteger();
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "parse-budget-" + n.getAndIncrement());
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    // parses a copy of one sentence; abandoned once it has timed out
+    private class ParseTask implements Runnable {
+	final Annotator parser;
+	final Annotation copy;
+	private boolean started = false;
+	private boolean finished = false;
+	private boolean abandoned = false;
+
+	ParseTask(Annotator parser, Annotation copy) {
+	    this.parser = parser;
+	    this.copy = copy;
+	}
+
+	public void run() {
+	    synchronized(this) {
+		if(abandoned)
+		    return;
+		started = true;
+	    }
+	    try {
+		parser.annotate(copy);
+	    } finally {
+		synchronized(this) {
+		    finished = true;
+		    if(abandoned)
+			stuck.decrementAndGet();
+		}
+	    }
+	}
+
+	synchronized void abandon() {
+	    abandoned = true;
+	    if(started && !finished)
+		noteStuck(stuck.incrementAndGet());
+	}
+    }
+
+    private void noteStuck(int n) {
+	int max = maxStuck.get();
+	while(n > max && !maxStuck.compareAndSet(max, n))
+	    max = maxStuck.get();
+    }
+
+    /** Run the parse stage over each sentence, within the limits. */
+    public void parse(List<CoreMap> sentences) {
+	// waits for the model to load, if need be, before any clock starts
+	Annotator parser = InMemoryAnnoPipeline.annotator("parse");
+	for(CoreMap sentence : sentences) {
+	    if(maxTokens > 0 && sentence.get(TokensAnnotation.class).size() > maxTokens) {
+		tooLong.incrementAndGet();
+		fallback(sentence, "length");
+		continue;
+	    }
+	    long start = System.nanoTime();
+	    if(executor == null) {
+		List<CoreMap> one = new ArrayList<CoreMap>(1);
+		one.add(sentence);
+		try {
+		    parser.annotate(InMemoryAnnoPipeline.subDocument(one));
+		    PARSE.since(start);
+		} catch(Exception e) {
+		    failed.incrementAndGet();
+		    fallback(sentence, "error");
+		}
+		continue;
+	    }
+	    // the sentence itself is only touched here, once the parse is done
+	    ParseTask task = new ParseTask(parser, copyOf(sentence));
+	    Future<?> parse = executor.submit(task);
+	    try {
+		parse.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		copyParse(task.copy.get(SentencesAnnotation.class).get(0), sentence);
+		PARSE.since(start);
+	    } catch(TimeoutException e) {
+		task.abandon();
+		parse.cancel(false);
+		timedOut.incrementAndGet();
+		fallback(sentence, "timeout");
+	    } catch(ExecutionException e) {
+		failed.incrementAndGet();
+		fallback(sentence, "error");
+	    } catch(InterruptedException e) {
+		task.abandon();
+		parse.cancel(false);
+		Thread.currentThread().interrupt();
+		throw new RuntimeException("interrupted while parsing", e);
+	    }
+	}
+    }
+
+    // a one-sentence document with its own copies of the sentence's tokens
+    private static Annotation copyOf(CoreMap sentence) {
+	List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+	List<CoreLabel> copied = new ArrayList<CoreLabel>(tokens.size());
+	for(CoreLabel token : tokens)
+	    copied.add(new CoreLabel(token));
+	Annotation copy = new Annotation((String) null);
+	copy.set(TokensAnnotation.class, copied);
+	List<CoreMap> one = new ArrayList<CoreMap>(1);
+	one.add(copy);
+	Annotation document = new Annotation((String) null);
+	document.set(SentencesAnnotation.class, one);
+	document.set(TokensAnnotation.class, copied);
+	return document;
+    }
+
+    // what the parse stage sets: the tree, the dependency graphs and missing tags
+    private static void copyParse(CoreMap from, CoreMap to) {
+	to.set(TreeAnnotation.class, from.get(TreeAnnotation.class));
+	to.set(BasicDependenciesAnnotation.class, from.get(BasicDependenciesAnnotation.class));
+	to.set(CollapsedDependenciesAnnotation.class, from.get(CollapsedDependenciesAnnotation.class));
+	to.set(CollapsedCCProcessedDependenciesAnnotation.class, from.get(CollapsedCCProcessedDependenciesAnnotation.class));
+	List<CoreLabel> fromTokens = from.get(TokensAnnotation.class);
+	List<CoreLabel> toTokens = to.get(TokensAnnotation.class);
+	for(int i = 0; i < toTokens.size(); i++)
+	    if(toTokens.get(i).tag() == null && fromTokens.get(i).tag() != null)
+		toTokens.get(i).setTag(fromTokens.get(i).tag());
+    }
+
+    /** Give sentence a flat tree and empty dependency graphs, and mark it. */
+    public static void fallback(CoreMap sentence, String reason) {
+	sentence.set(TreeAnnotation.class, flatTree(sentence.get(TokensAnnotation.class)));
+	sentence.set(BasicDependenciesAnnotation.class, new SemanticGraph());
+	sentence.set(CollapsedDependenciesAnnotation.class, new SemanticGraph());
+	sentence.set(CollapsedCCProcessedDependenciesAnnotation.class, new SemanticGraph());
+	sentence.set(ParseFallbackAnnotation.class, reason);
+    }
+
+    /** (ROOT (X (tag word) ...)), using X for missing tags */
+    public static Tree flatTree(List<CoreLabel> tokens) {
+	TreeFactory tf = new LabeledScoredTreeFactory(CoreLabel.factory());
+	List<Tree> preterminals = new ArrayList<Tree>(tokens.size());
+	for(CoreLabel token : tokens) {
+	    List<Tree> leaf = new ArrayList<Tree>(1);
+	    leaf.add(tf.newLeaf(token.word()));
+	    preterminals.add(tf.newTreeNode(token.tag() == null ? "X" : token.tag(), leaf));
+	}
+	List<Tree> x = new ArrayList<Tree>(1);
+	x.add(tf.newTreeNode("X", preterminals));
+	Tree root = tf.newTreeNode("ROOT", x);
+	root.indexLeaves();
+	return root;
+    }
+
+    public String stats() {
+	String s = String.format("parse budget: %d too long (> %d tokens), %d timed out (> %d ms), %d failed",
+				 tooLong.get(), maxTokens, timedOut.get(), timeoutMillis, failed.get());
+	if(executor == null)
+	    return s;
+	return s + String.format("; %d timed out parse(s) still running (at most %d), on a pool of %d threads",
+				 stuck.get(), maxStuck.get(), executor.getMaximumPoolSize());
+    }
+}
@@ -0,0 +1,289 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.ParserAnnotatorUtils;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
+import edu.stanford.nlp.trees.TreeFactory;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * A bounded LRU cache of POS tags, lemmas and parse trees, keyed by a hash
+ * of the sentence's tokens.
+ *
+ * News feeds repeat bylines, disclaimers, datelines and syndicated
+ * paragraphs; a hit replaces the pos, lemma and parse stages for the
+ * sentence. The dependency graphs are regenerated from the cached tree.
+ * Optionally the cache is loaded from and saved to a local file so it
+ * survives across runs. Safe to share between threads.
+ */
+public class ParseCache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FILE_VERSION = 1;
+    // rough per-entry and per-string overheads, in bytes
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int STRING_OVERHEAD = 40;
+
+    private static class Entry {
+	final String[] tags;
+	final String[] lemmas;
+	final String tree;
+	final long bytes;
+
+	Entry(String[] tags, String[] lemmas, String tree) {
+	    this.tags = tags;
+	    this.lemmas = lemmas;
+	    this.tree = tree;
+	    long b = ENTRY_OVERHEAD + STRING_OVERHEAD + 2L * tree.length();
+	    for(int i = 0; i < tags.length; i++)
+		b += 2 * STRING_OVERHEAD + 2L * (tags[i].length() + lemmas[i].length());
+	    this.bytes = b;
+	}
+    }
+
+    private final long maxBytes;
+    private final File file;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxMB size limit, estimated from the cached strings
+     * @param file where to load the cache from and save it to, or null
+     */
+    public ParseCache(int maxMB, File file) throws IOException {
+	this.maxBytes = maxMB * 1024L * 1024L;
+	this.file = file;
+	if(file != null && file.exists())
+	    load();
+    }
+
+    /**
+     * If the sentence is cached, set its POS tags, lemmas and tree (plus
+     * dependencies derived from the tree) and return true.
+     */
+    public boolean apply(CoreMap sentence) {
+	List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+	Entry entry;
+	synchronized(this) {
+	    entry = entries.get(key(tokens));
+	}
+	if(entry == null || entry.tags.length != tokens.size()) {
+	    misses.incrementAndGet();
+	    return false;
+	}
+	for(int i = 0; i < tokens.size(); i++) {
+	    tokens.get(i).setTag(entry.tags[i]);
+	    tokens.get(i).setLemma(entry.lemmas[i]);
+	}
+	Tree tree = readTree(entry.tree);
+	tree.indexLeaves();
+	sentence.set(TreeAnnotation.class, tree);
+	try {
+	    ParserAnnotatorUtils.fillInParseAnnotations(false, sentence, tree);
+	} catch(Exception e) {
+	    // same as an unparseable sentence: no dependencies
+	}
+	hits.incrementAndGet();
+	return true;
+    }
+
+    /** Remember the results of the pos, lemma and parse stages for sentence. */
+    public void store(CoreMap sentence) {
+	Tree tree = sentence.get(TreeAnnotation.class);
+	if(tree == null || sentence.get(ParseBudget.ParseFallbackAnnotation.class) != null)
+	    return;
+	List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+	String[] tags = new String[tokens.size()];
+	String[] lemmas = new String[tokens.size()];
+	for(int i = 0; i < tokens.size(); i++) {
+	    tags[i] = tokens.get(i).tag();
+	    lemmas[i] = tokens.get(i).lemma();
+	    if(tags[i] == null || lemmas[i] == null)
+		return;
+	}
+	StringBuilder sb = new StringBuilder();
+	writeTree(tree, sb);
+	put(key(tokens), new Entry(tags, lemmas, sb.toString()));
+    }
+
+    private synchronized void put(String key, Entry entry) {
+	if(entry.bytes > maxBytes)
+	    return;
+	Entry old = entries.put(key, entry);
+	if(old != null)
+	    bytes -= old.bytes;
+	bytes += entry.bytes;
+	// evict least recently used
+	Iterator<Entry> it = entries.values().iterator();
+	while(bytes > maxBytes && it.hasNext()) {
+	    bytes -= it.next().bytes;
+	    it.remove();
+	}
+    }
+
+    /** A SHA-1 of the token words, separated by spaces. */
+    static String key(List<CoreLabel> tokens) {
+	MessageDigest md;
+	try {
+	    md = MessageDigest.getInstance("SHA-1");
+	} catch(NoSuchAlgorithmException e) {
+	    throw new RuntimeException(e);
+	}
+	for(CoreLabel token : tokens) {
+	    md.update(token.word().getBytes(UTF8));
+	    md.update((byte) ' ');
+	}
+	byte[] digest = md.digest();
+	StringBuilder sb = new StringBuilder(2 * digest.length);
+	for(byte b : digest)
+	    sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+	return sb.toString();
+    }
+
+    // (LABEL child child ...) with leaves written as their value
+    private static void writeTree(Tree t, StringBuilder sb) {
+	if(t.isLeaf()) {
+	    sb.append(t.value());
+	    return;
+	}
+	sb.append('(').append(t.value());
+	for(Tree child : t.children()) {
+	    sb.append(' ');
+	    writeTree(child, sb);
+	}
+	sb.append(')');
+    }
+
+    private static Tree readTree(String s) {
+	TreeFactory tf = new LabeledScoredTreeFactory(CoreLabel.factory());
+	return readTree(s, new int[] {0}, tf);
+    }
+
+    private static Tree readTree(String s, int[] pos, TreeFactory tf) {
+	if(s.charAt(pos[0]) != '(') {
+	    int end = pos[0];
+	    while(end < s.length() && s.charAt(end) != ' ' && s.charAt(end) != ')')
+		end++;
+	    Tree leaf = tf.newLeaf(s.substring(pos[0], end));
+	    pos[0] = end;
+	    return leaf;
+	}
+	int labelEnd = pos[0] + 1;
+	while(s.charAt(labelEnd) != ' ' && s.charAt(labelEnd) != ')')
+	    labelEnd++;
+	String label = s.substring(pos[0] + 1, labelEnd);
+	pos[0] = labelEnd;
+	List<Tree> children = new ArrayList<Tree>();
+	while(s.charAt(pos[0]) == ' ') {
+	    pos[0]++;
+	    children.add(readTree(s, pos, tf));
+	}
+	pos[0]++; // ')'
+	return tf.newTreeNode(label, children);
+    }
+
+    public long hits() {
+	return hits.get();
+    }
+
+    public long misses() {
+	return misses.get();
+    }
+
+    public synchronized String stats() {
+	long h = hits.get();
+	long total = h + misses.get();
+	return String.format("parse cache: %d hits, %d misses (%.1f%% hit rate), %d entries, %.1f of %d MB",
+			     h, misses.get(), total == 0 ? 0.0 : 100.0 * h / total,
+			     entries.size(), bytes / (1024.0 * 1024.0), maxBytes / (1024 * 1024));
+    }
+
+    /** Write the cache to its file (if it has one), least recently used first. */
+    public synchronized void save() throws IOException {
+	if(file == null)
+	    return;
+	File tmp = new File(file.getPath() + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	    out.writeInt(FILE_VERSION);
+	    out.writeInt(entries.size());
+	    for(Map.Entry<String, Entry> e : entries.entrySet()) {
+		Entry entry = e.getValue();
+		writeString(out, e.getKey());
+		out.writeInt(entry.tags.length);
+		for(int i = 0; i < entry.tags.length; i++) {
+		    writeString(out, entry.tags[i]);
+		    writeString(out, entry.lemmas[i]);
+		}
+		writeString(out, entry.tree);
+	    }
+	} finally {
+	    out.close();
+	}
+	if(!tmp.renameTo(file)) {
+	    file.delete();
+	    if(!tmp.renameTo(file))
+		throw new IOException("couldn't rename " + tmp + " to " + file);
+	}
+    }
+
+    private synchronized void load() throws IOException {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	try {
+	    int version = in.readInt();
+	    if(version != FILE_VERSION) {
+		System.err.println("Ignoring parse cache " + file + " with version " + version);
+		return;
+	    }
+	    int n = in.readInt();
+	    for(int e = 0; e < n; e++) {
+		String key = readString(in);
+		int numTokens = in.readInt();
+		String[] tags = new String[numTokens];
+		String[] lemmas = new String[numTokens];
+		for(int i = 0; i < numTokens; i++) {
+		    tags[i] = readString(in);
+		    lemmas[i] = readString(in);
+		}
+		put(key, new Entry(tags, lemmas, readString(in)));
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+	byte[] b = s.getBytes(UTF8);
+	out.writeInt(b.length);
+	out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+	byte[] b = new byte[in.readInt()];
+	in.readFully(b);
+	return new String(b, UTF8);
+    }
+}
@@ -0,0 +1,209 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms for each step of the pipeline (read, tokenize, each
+ * CoreNLP stage, xml, convert, rebuild, write) and counters of the
+ * Communications, sentences and tokens annotated. Shared by every pipeline
+ * in the JVM, always on: recording is a nanoTime() and a few atomic adds.
+ *
+ * registerMBeans() publishes them under edu.jhu.hlt.concrete.stanford:*,
+ * and startLogging() prints a summary line periodically.
+ */
+public class PipelineMetrics {
+
+    /** JMX view of one stage. */
+    public interface StageMXBean {
+	long getCount();
+	double getTotalSeconds();
+	double getMeanMillis();
+	double getP50Millis();
+	double getP90Millis();
+	double getP99Millis();
+	double getMaxMillis();
+    }
+
+    /** JMX view of the totals. */
+    public interface TotalsMXBean {
+	long getCommunications();
+	long getSentences();
+	long getTokens();
+	double getUptimeSeconds();
+	double getCommunicationsPerSecond();
+	double getTokensPerSecond();
+    }
+
+    /** One step of the pipeline. */
+    public static class Stage implements StageMXBean {
+	private final String name;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	Stage(String name) {
+	    this.name = name;
+	}
+
+	public String name() {
+	    return name;
+	}
+
+	/** Record the time since start (from System.nanoTime()). */
+	public void since(long start) {
+	    histogram.record(System.nanoTime() - start);
+	}
+
+	public LatencyHistogram histogram() {
+	    return histogram;
+	}
+
+	public long getCount() { return histogram.count(); }
+	public double getTotalSeconds() { return histogram.totalNanos() / 1e9; }
+	public double getMeanMillis() { return histogram.meanNanos() / 1e6; }
+	public double getP50Millis() { return histogram.percentileNanos(0.5) / 1e6; }
+	public double getP90Millis() { return histogram.percentileNanos(0.9) / 1e6; }
+	public double getP99Millis() { return histogram.percentileNanos(0.99) / 1e6; }
+	public double getMaxMillis() { return histogram.maxNanos() / 1e6; }
+    }
+
+    private static class Totals implements TotalsMXBean {
+	public long getCommunications() { return communications.get(); }
+	public long getSentences() { return sentences.get(); }
+	public long getTokens() { return tokens.get(); }
+	public double getUptimeSeconds() { return (System.nanoTime() - started) / 1e9; }
+	public double getCommunicationsPerSecond() { return communications.get() / Math.max(getUptimeSeconds(), 1e-3); }
+	public double getTokensPerSecond() { return tokens.get() / Math.max(getUptimeSeconds(), 1e-3); }
+    }
+
+    private static final ConcurrentMap<String, Stage> stages = new ConcurrentHashMap<String, Stage>();
+    // the order stages are listed in; others follow in order of first use
+    private static final String[] ORDER = {"read", "tokenize", "pos", "lemma", "parse", "ner", "dcoref",
+					   "xml", "convert", "rebuild", "write"};
+    private static final AtomicLong communications = new AtomicLong();
+    private static final AtomicLong sentences = new AtomicLong();
+    private static final AtomicLong tokens = new AtomicLong();
+    private static final long started = System.nanoTime();
+    private static boolean registered = false;
+    private static ScheduledExecutorService logger = null;
+
+    public static final Stage READ = stage("read");
+    public static final Stage TOKENIZE = stage("tokenize");
+    public static final Stage XML = stage("xml");
+    public static final Stage CONVERT = stage("convert");
+    public static final Stage REBUILD = stage("rebuild");
+    public static final Stage WRITE = stage("write");
+
+    private PipelineMetrics() {
+    }
+
+    /** The stage called name, created on first use (e.g. for each CoreNLP annotator). */
+    public static Stage stage(String name) {
+	Stage stage = stages.get(name);
+	if(stage == null) {
+	    Stage created = new Stage(name);
+	    stage = stages.putIfAbsent(name, created);
+	    if(stage == null) {
+		stage = created;
+		registerIfStarted(stage);
+	    }
+	}
+	return stage;
+    }
+
+    public static void countCommunication() {
+	communications.incrementAndGet();
+    }
+
+    public static void countSentences(int n, int numTokens) {
+	sentences.addAndGet(n);
+	tokens.addAndGet(numTokens);
+    }
+
+    /** Publish the stages and totals as MXBeans in the platform MBeanServer. */
+    public static synchronized void registerMBeans() {
+	if(registered)
+	    return;
+	registered = true;
+	try {
+	    ManagementFactory.getPlatformMBeanServer()
+		.registerMBean(new Totals(), new ObjectName("edu.jhu.hlt.concrete.stanford:type=Totals"));
+	} catch(Exception e) {
+	    System.err.println("Couldn't register pipeline metrics: " + e);
+	}
+	for(Stage stage : stages.values())
+	    registerIfStarted(stage);
+    }
+
+    private static synchronized void registerIfStarted(Stage stage) {
+	if(!registered)
+	    return;
+	try {
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    ObjectName name = new ObjectName("edu.jhu.hlt.concrete.stanford:type=Stage,name=" + stage.name());
+	    if(!server.isRegistered(name))
+		server.registerMBean(stage, name);
+	} catch(Exception e) {
+	    System.err.println("Couldn't register metrics for stage " + stage.name() + ": " + e);
+	}
+    }
+
+    /** Print summary() to stderr every so many seconds, until the JVM exits. */
+    public static synchronized void startLogging(int seconds) {
+	if(logger != null || seconds <= 0)
+	    return;
+	logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "pipeline-metrics");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	logger.scheduleAtFixedRate(new Runnable() {
+		public void run() {
+		    System.err.println(summary());
+		}
+	    }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * One line: totals and rates, then for each stage that ran its count,
+     * total seconds and p50/p99 in ms.
+     */
+    public static String summary() {
+	Totals totals = new Totals();
+	StringBuilder sb = new StringBuilder();
+	sb.append(String.format("[metrics] %d comms, %d sents, %d tokens (%.2f comms/s, %.0f tokens/s)",
+				totals.getCommunications(), totals.getSentences(), totals.getTokens(),
+				totals.getCommunicationsPerSecond(), totals.getTokensPerSecond()));
+	for(Stage stage : ordered()) {
+	    if(stage.getCount() == 0)
+		continue;
+	    sb.append(String.format(" | %s %d %.1fs p50=%.1f p99=%.1f", stage.name(), stage.getCount(),
+				    stage.getTotalSeconds(), stage.getP50Millis(), stage.getP99Millis()));
+	}
+	return sb.toString();
+    }
+
+    private static List<Stage> ordered() {
+	List<Stage> ordered = new ArrayList<Stage>();
+	for(String name : ORDER)
+	    if(stages.containsKey(name))
+		ordered.add(stages.get(name));
+	for(Map.Entry<String, Stage> e : stages.entrySet())
+	    if(!ordered.contains(e.getValue()))
+		ordered.add(e.getValue());
+	return ordered;
+    }
+}
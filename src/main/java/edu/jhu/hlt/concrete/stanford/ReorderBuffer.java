@@ -0,0 +1,64 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects results that finish out of order and hands them back out in
+ * sequence order (0, 1, 2, ...), or, if unordered, as soon as they're put.
+ */
+class ReorderBuffer<T> {
+
+    private final Map<Long, T> pending = new HashMap<Long, T>();
+    private final boolean ordered;
+    private long next = 0;
+    private long total = -1;
+    private Throwable failure = null;
+
+    public ReorderBuffer() {
+	this(true);
+    }
+
+    public ReorderBuffer(boolean ordered) {
+	this.ordered = ordered;
+    }
+
+    public synchronized void put(long seq, T item) {
+	pending.put(seq, item);
+	notifyAll();
+    }
+
+    /** No more than count items will be put. */
+    public synchronized void finish(long count) {
+	total = count;
+	notifyAll();
+    }
+
+    /** Wakes up take(), which will rethrow t. Only the first failure is kept. */
+    public synchronized void fail(Throwable t) {
+	if(failure == null)
+	    failure = t;
+	notifyAll();
+    }
+
+    /**
+     * Blocks until the next item in sequence (or if unordered, any item) is
+     * available. Returns null once all items have been taken.
+     */
+    public synchronized T take() throws IOException, InterruptedException {
+	while(true) {
+	    if(failure != null)
+		throw new IOException("annotation failed", failure);
+	    T item = ordered || pending.isEmpty() ? pending.remove(next)
+		: pending.remove(pending.keySet().iterator().next());
+	    if(item != null) {
+		next++;
+		return item;
+	    }
+	    if(total >= 0 && next >= total)
+		return null;
+	    wait();
+	}
+    }
+}
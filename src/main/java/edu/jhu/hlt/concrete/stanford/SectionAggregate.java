@@ -0,0 +1,45 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.jhu.hlt.concrete.Concrete.UUID;
+import edu.stanford.nlp.pipeline.Annotation;
+
+/**
+ * A run of consecutive PASSAGE sections that CoreNLP annotates as one
+ * document (see --aggregate-by-first-section-number), together with the ids
+ * needed to put the results back into the Communication.
+ */
+public class SectionAggregate {
+
+    private final UUID sectionSegmentationId;
+    private final List<UUID> sectionIds;
+    private final List<UUID> sentenceSegIds;
+    private final Annotation annotation;
+
+    public SectionAggregate(UUID sectionSegmentationId, List<UUID> sectionIds,
+			    List<UUID> sentenceSegIds, Annotation annotation) {
+	this.sectionSegmentationId = sectionSegmentationId;
+	this.sectionIds = new ArrayList<UUID>(sectionIds);
+	this.sentenceSegIds = new ArrayList<UUID>(sentenceSegIds);
+	this.annotation = annotation;
+    }
+
+    public UUID getSectionSegmentationId() {
+	return sectionSegmentationId;
+    }
+
+    public List<UUID> getSectionIds() {
+	return sectionIds;
+    }
+
+    public List<UUID> getSentenceSegIds() {
+	return sentenceSegIds;
+    }
+
+    /** The CoreNLP document, one sentence per Concrete Sentence, in order. */
+    public Annotation getAnnotation() {
+	return annotation;
+    }
+}
@@ -0,0 +1,250 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.jhu.hlt.concrete.Concrete.Communication;
+
+/**
+ * Annotates a stream of Communications as a staged pipeline:
+ *
+ *   read -> tokenize -> parse -> coref+convert -> write (in input order)
+ *
+ * Each stage has its own threads and takes its work from a bounded queue,
+ * so the cheap tokenizer, the CPU-bound parser (pos, lemma, parse) and the
+ * bursty, memory-heavy dcoref and Concrete conversion overlap instead of
+ * running back to back. Section aggregates are the unit of work after
+ * tokenization; a Communication is rebuilt once its last aggregate is done.
+ */
+public class StagedCommunicationPipe {
+
+    // one Communication and the progress of its aggregates
+    private static class Job {
+	final long seq;
+	final Communication comm;
+	List<SectionAggregate> aggregates;
+	AtomicInteger remaining;
+	long admitted;
+	Job(long seq, Communication comm) {
+	    this.seq = seq;
+	    this.comm = comm;
+	}
+    }
+
+    // one aggregate of a Job
+    private static class Task {
+	final Job job;
+	final SectionAggregate aggregate;
+	Task(Job job, SectionAggregate aggregate) {
+	    this.job = job;
+	    this.aggregate = aggregate;
+	}
+    }
+
+    /**
+     * A set of threads taking items from a bounded queue. When the last
+     * thread of a stage sees its end marker, the next stage is closed.
+     */
+    private abstract class Stage<T> {
+	final String name;
+	final int threads;
+	final BlockingQueue<T> queue;
+	final T end;
+	final AtomicInteger live;
+	Stage<?> next;
+
+	Stage(String name, int threads, T end) {
+	    this.name = name;
+	    this.threads = threads;
+	    this.queue = new ArrayBlockingQueue<T>(capacity);
+	    this.end = end;
+	    this.live = new AtomicInteger(threads);
+	}
+
+	abstract void handle(T item, int worker) throws Exception;
+
+	void start() {
+	    for(int i = 0; i < threads; i++) {
+		final int worker = i;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+			    loop(worker);
+			}
+		    }, name + "-" + i);
+		t.setDaemon(true);
+		allThreads.add(t);
+		t.start();
+	    }
+	}
+
+	void loop(int worker) {
+	    try {
+		while(true) {
+		    T item = queue.take();
+		    if(item == end)
+			break;
+		    handle(item, worker);
+		}
+		if(live.decrementAndGet() == 0 && next != null)
+		    next.close();
+	    } catch(InterruptedException e) {
+		// another thread failed and is shutting us down
+	    } catch(Throwable t) {
+		results.fail(t);
+	    }
+	}
+
+	void close() throws InterruptedException {
+	    for(int i = 0; i < threads; i++)
+		queue.put(end);
+	}
+    }
+
+    private static final Job END_JOB = new Job(-1, null);
+    private static final Task END_TASK = new Task(null, null);
+
+    private final List<StanfordAgigaPipe> tokenizers;
+    private final List<StanfordAgigaPipe> parsers;
+    private final List<StanfordAgigaPipe> converters;
+    private final int capacity;
+    private final boolean debug;
+    private AdmissionController admission = null;
+
+    private ReorderBuffer<Communication> results;
+    private Semaphore inFlight;
+    private List<Thread> allThreads;
+
+    /**
+     * @param tokenizers one per tokenize thread
+     * @param parsers one per pos/lemma/parse thread
+     * @param converters one per ner/dcoref/conversion thread
+     * @param capacity the bound on each queue, and on the number of
+     *        Communications in flight
+     */
+    public StagedCommunicationPipe(List<StanfordAgigaPipe> tokenizers, List<StanfordAgigaPipe> parsers,
+				   List<StanfordAgigaPipe> converters, int capacity, boolean debug) {
+	if(tokenizers.isEmpty() || parsers.isEmpty() || converters.isEmpty())
+	    throw new IllegalArgumentException("every stage needs at least one thread");
+	this.tokenizers = tokenizers;
+	this.parsers = parsers;
+	this.converters = converters;
+	this.capacity = Math.max(capacity, 1);
+	this.debug = debug;
+    }
+
+    /** Hold up reading while admission says the work in flight is too big. */
+    public void setAdmissionController(AdmissionController admission) {
+	this.admission = admission;
+    }
+
+    // job is annotated: its results are all in the Communication put in results
+    private void finished(Job job, Communication annotated) {
+	if(admission != null)
+	    admission.release(job.admitted);
+	results.put(job.seq, annotated);
+    }
+
+    /**
+     * Annotate everything in source and write it to sink, in input order.
+     * @return the number of Communications written
+     */
+    public int run(final CommunicationPool.Source source, CommunicationPool.Sink sink) throws IOException {
+	results = new ReorderBuffer<Communication>();
+	inFlight = new Semaphore(capacity);
+	allThreads = new ArrayList<Thread>();
+
+	// built back to front, so each stage can hand work to the next
+	final Stage<Task> coref = new Stage<Task>("coref", converters.size(), END_TASK) {
+	    void handle(Task task, int worker) {
+		converters.get(worker).annotateDocument(task.aggregate);
+		Job job = task.job;
+		if(job.remaining.decrementAndGet() > 0)
+		    return;
+		// last aggregate of this Communication: convert all of them,
+		// in order, and rebuild once
+		StanfordAgigaPipe converter = converters.get(worker);
+		AgigaConcreteAnnotator annotator = converter.newAnnotator();
+		for(SectionAggregate aggregate : job.aggregates)
+		    converter.addAnnotations(annotator, aggregate);
+		finished(job, annotator.apply(job.comm));
+	    }
+	};
+	final Stage<Task> parse = new Stage<Task>("parse", parsers.size(), END_TASK) {
+	    void handle(Task task, int worker) throws InterruptedException {
+		parsers.get(worker).annotateSentences(task.aggregate);
+		coref.queue.put(task);
+	    }
+	};
+	final Stage<Job> tokenize = new Stage<Job>("tokenize", tokenizers.size(), END_JOB) {
+	    void handle(Job job, int worker) throws InterruptedException {
+		job.aggregates = tokenizers.get(worker).tokenize(job.comm);
+		if(debug)
+		    System.err.println("communication #" + job.seq + ": " + job.aggregates.size() + " aggregates");
+		if(job.aggregates.isEmpty()) {
+		    finished(job, job.comm);
+		    return;
+		}
+		job.remaining = new AtomicInteger(job.aggregates.size());
+		for(SectionAggregate aggregate : job.aggregates)
+		    parse.queue.put(new Task(job, aggregate));
+	    }
+	};
+	tokenize.next = parse;
+	parse.next = coref;
+
+	Thread reader = new Thread(new Runnable() {
+		public void run() {
+		    long seq = 0;
+		    try {
+			while(true) {
+			    inFlight.acquire();
+			    Communication comm = source.next();
+			    if(comm == null)
+				break;
+			    Job job = new Job(seq++, comm);
+			    if(admission != null)
+				job.admitted = admission.acquire(comm);
+			    tokenize.queue.put(job);
+			}
+			results.finish(seq);
+			tokenize.close();
+		    } catch(InterruptedException e) {
+			// another thread failed and is shutting us down
+		    } catch(Throwable t) {
+			results.fail(t);
+		    }
+		}
+	    }, "comm-reader");
+	reader.setDaemon(true);
+	allThreads.add(reader);
+	tokenize.start();
+	parse.start();
+	coref.start();
+	reader.start();
+
+	int written = 0;
+	boolean done = false;
+	try {
+	    Communication comm;
+	    while((comm = results.take()) != null) {
+		sink.write(comm);
+		inFlight.release();
+		written++;
+	    }
+	    done = true;
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted while waiting for results", e);
+	} finally {
+	    if(!done)
+		for(Thread t : allThreads)
+		    t.interrupt();
+	}
+	return written;
+    }
+}
@@ -2,11 +2,19 @@ package edu.jhu.hlt.concrete.stanford;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import edu.jhu.agiga.AgigaDocument;
 import edu.jhu.hlt.concrete.Concrete;
@@ -26,11 +34,43 @@ import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
 import edu.stanford.nlp.util.CoreMap;
 
 
-public class StanfordAgigaPipe {
+public class StanfordAgigaPipe implements CommunicationAnnotator {
     static final String usage = "You must specify an input path: java edu.jhu.hlt.concrete.stanford.StanfordAgigaPipe --input path/to/input/file --output path/to/output/file\n"
+	+ "  or, for many files: java edu.jhu.hlt.concrete.stanford.StanfordAgigaPipe --input-dir path/to/dir|--input-list path/to/list --output-dir path/to/dir\n"
+	+ "  or, as a server: java edu.jhu.hlt.concrete.stanford.StanfordAgigaPipe --serve PORT (see AnnotationClient)\n"
 	+ "  Optional arguments: \n"
-	+ "       --only-tokenize t|f\n\t\ttokenize and serialize (no parsing/CoreNLP) (default: f)\n"
+	+ "       --only-tokenize t|f\n\t\ttokenize and serialize (no parsing/CoreNLP), same as --annotators tokenize; token spans are\n\t\toffsets into the communication text (default: f)\n"
+	+ "       --annotators PROFILE|STAGE,...\n\t\twhich CoreNLP stages to run, with their prerequisites: a profile (tokenize, pos, pos-ner, parse, parse-ner, full)\n\t\tor a list of stages from pos, lemma, parse, ner, dcoref (default: full)\n"
+	+ "       --output-layers all|LAYER,...\n\t\twhich layers to write (tokens always are), from pos, lemma, ner, parse, basic-deps, collapsed-deps,\n\t\tcollapsed-cc-deps, coref; the others aren't converted. A kind of dependency parse left out while another\n\t\tis written becomes an empty DependencyParse whose tool ends in \"(LAYER left out)\", so each kind keeps\n\t\tits position (default: all)\n"
 	+ "       --aggregate-by-first-section-number t|f\n\t\taggregate by lead section number (default: f)\n"
+	+ "       --via-agiga t|f\n\t\tconvert through CoreNLP XML and agiga instead of directly; both give the same output, see\n\t\tStanfordConcreteConverterTest (default: f)\n"
+	+ "       --incremental t|f\n\t\tpass through sections already annotated by concrete-stanford with the same settings, and replace\n\t\tolder annotations on the others (default: f)\n"
+	+ "       --merge-entity-sets t|f\n\t\tput the entity mentions and entities of all section aggregates in one EntityMentionSet and\n\t\tEntitySet per communication (default: f)\n"
+	+ "       --mmap-input t|f\n\t\tread the input through a memory map, decoding ahead on a background thread (default: f)\n"
+	+ "       --async-output t|f\n\t\tserialize and write the output on background threads (default: f)\n"
+	+ "       --output-compression none|gzip|block\n\t\tcompress the output as one gzip stream, or as independent gzip blocks; implies --async-output (default: none)\n"
+	+ "       --shards N\n\t\twith --output-dir, write N output files (default: 1)\n"
+	+ "       --checkpoint-every N\n\t\tevery N communications, fsync the output and record progress in output.checkpoint (default: off)\n"
+	+ "       --resume\n\t\tcontinue from output.checkpoint: skip the input already annotated and truncate the output to match\n"
+	+ "       --threads N\n\t\tannotate N communications (or with --output-dir, N files) in parallel, output stays in input order (default: 1)\n"
+	+ "       --stage-threads T,P,C\n\t\trun as a staged pipeline with T tokenize, P parse and C coref/convert threads\n"
+	+ "       --sentence-threads N\n\t\tspread pos/lemma/parse of each aggregate's sentences over N threads (default: 1)\n"
+	+ "       --parse-cache-mb N\n\t\tcache pos/lemma/parse results of up to N MB of repeated sentences (default: off)\n"
+	+ "       --parse-cache-file path\n\t\tload the parse cache from path, and save it there at the end\n"
+	+ "       --coref-window-sentences N\n\t\trun ner and dcoref on windows of at most N sentences of larger aggregates (default: no limit)\n"
+	+ "       --coref-window-tokens N\n\t\trun ner and dcoref on windows of at most N tokens of larger aggregates (default: no limit)\n"
+	+ "       --coref-link-windows t|f\n\t\tmerge entities of different windows whose representative mentions are the same proper name (default: t)\n"
+	+ "       --max-parse-tokens N\n\t\tgive sentences longer than N tokens a flat fallback parse (default: no limit)\n"
+	+ "       --parse-timeout-ms N\n\t\tgive sentences that take longer than N ms to parse a flat fallback parse (default: no limit)\n"
+	+ "       --serve PORT\n\t\tkeep the models loaded and annotate delimited Communications sent to localhost:PORT, on --threads workers\n"
+	+ "       --serve-batch N\n\t\twith --serve, a worker takes up to N requests that are already waiting at once (default: 8)\n"
+	+ "       --lookahead N\n\t\twith --threads > 1, annotate the most expensive of the next N communications first, by sentence count and length\n\t\t(with --output-dir, the largest files first) (default: off)\n"
+	+ "       --unordered-output\n\t\twith --threads > 1, write communications as soon as they're annotated instead of in input order\n"
+	+ "       --inflight-tokens N\n\t\twith --threads > 1, --stage-threads or --serve, stop reading while the communications being annotated hold\n\t\tmore than about N tokens (default: no limit)\n"
+	+ "       --low-memory-fraction F\n\t\twith --threads > 1, --stage-threads or --serve, admit one communication at a time while the old generation\n\t\tis over F of its maximum after a collection; 0 turns this off (default: 0.9)\n"
+	+ "       --queue-size N\n\t\tmax communications in flight when --threads > 1, or per stage queue (default: 2 * threads)\n"
+	+ "       --loader-threads N\n\t\tload the CoreNLP models on N threads, in the background (default: up to 3)\n"
+	+ "       --metrics-log-sec N\n\t\tprint per-stage latencies and throughput every N seconds (also published via JMX) (default: off)\n"
 	+ "       --debug\n\t\tto print debugging messages (default: false)\n";
 	
     private boolean debug = false;
@@ -40,12 +80,76 @@ public class StanfordAgigaPipe {
     private boolean tokenize = true;
     private boolean onlyTokenize = false;
     private boolean parse = false;
+    // t: the old XML/agiga round trip, which StanfordConcreteConverterTest checks StanfordConcreteConverter against
+    private boolean viaAgiga = false;
+    private int numThreads = 1;
+    private int queueSize = -1;
+    private int lookahead = 0;
+    private long inflightTokens = 0;
+    private double lowMemoryFraction = 0.9;
+    private boolean unorderedOutput = false;
+    private int[] stageThreads = null;
+    private int sentenceThreads = 1;
+    // shared by all workers; null unless --sentence-threads > 1
+    private ForkJoinPool sentencePool = null;
+    private int parseCacheMB = 0;
+    private String parseCacheFile = null;
+    // shared by all workers; null unless --parse-cache-mb > 0
+    private ParseCache parseCache = null;
+    private int maxParseTokens = 0;
+    private long parseTimeoutMillis = 0;
+    // shared by all workers; null unless one of its limits is set
+    private ParseBudget parseBudget = null;
+    private int corefWindowSentences = 0;
+    private int corefWindowTokens = 0;
+    private boolean corefLinkWindows = true;
+    // shared by all workers; null unless one of its limits is set
+    private CorefWindows corefWindows = null;
+
+    private boolean mmapInput = false;
+    private boolean asyncOutput = false;
+    private AsyncCommunicationWriter.Compression outputCompression = AsyncCommunicationWriter.Compression.NONE;
 
     private ProtocolBufferReader pbr;
+    // used instead of pbr with --mmap-input
+    private MappedCommunicationReader mappedReader;
+    // used instead of pbr for gzipped input
+    private CommunicationStreamReader streamReader;
     private ProtocolBufferWriter pbw;
+    // used instead of pbw with --async-output or --output-compression
+    private AsyncCommunicationWriter asyncWriter;
+
+    static final int DEFAULT_CHECKPOINT_EVERY = 1000;
+    private int checkpointEvery = 0;
+    private boolean resume = false;
+    // input offsets of the Communications read but not yet written, in order
+    private final Queue<Long> inputOffsets = new ConcurrentLinkedQueue<Long>();
+    private long lastInputOffset = 0;
+    private long communicationsWritten = 0;
+
+    private int metricsLogSeconds = 0;
+    private int loaderThreads = InMemoryAnnoPipeline.defaultLoaderThreads;
+    private AnnotatorProfile profile = AnnotatorProfile.FULL;
+    private OutputLayers outputLayers = OutputLayers.ALL;
+    private boolean incremental = false;
+    // the tool name in our AnnotationMetadata, with the fingerprint of the settings
+    private String tool = IncrementalAnnotation.TOOL;
+    // one EntityMentionSet and EntitySet per Communication, not per aggregate
+    private boolean mergeEntitySets = false;
+    // shared by all workers; null unless --incremental t
+    private IncrementalAnnotation incrementalAnnotation = null;
+    // shared by all workers; used instead of CoreNLP with --only-tokenize
+    private TokenizeOnlyAnnotator tokenizeOnly = null;
 
     private String inputFile = null;
     private String outputFile = null;
+    // batch mode: a directory of input files, or a file listing them
+    private String batchInput = null;
+    private String outputDir = null;
+    private int numShards = 1;
+    // server mode: the port to listen on
+    private int servePort = -1;
+    private int serveBatch = 8;
     private InMemoryAnnoPipeline pipeline;
         
     public static void main(String[] args) throws IOException{
@@ -55,19 +159,84 @@ public class StanfordAgigaPipe {
 
     public StanfordAgigaPipe(String[] args) {
 	parseArgs(args);
+	if(servePort >= 0) {
+	    if(batchInput != null || inputFile != null || outputFile != null) {
+		System.err.println("--serve takes no input or output");
+		System.exit(1);
+	    }
+	    pipeline = new InMemoryAnnoPipeline(onlyTokenize);
+	    return;
+	}
+	if(batchInput != null) {
+	    if(outputDir == null || inputFile != null || outputFile != null) {
+		System.err.println("--input-dir and --input-list go with --output-dir, not --input or --output");
+		System.exit(1);
+	    }
+	    pipeline = new InMemoryAnnoPipeline(onlyTokenize);
+	    return;
+	}
 	if(inputFile == null || outputFile==null){
 	    System.err.println(usage);
 	    System.exit(1);
 	}
+	Checkpoint resumeFrom = null;
+	if(checkpointEvery > 0) {
+	    if(outputCompression == AsyncCommunicationWriter.Compression.GZIP) {
+		System.err.println("--checkpoint-every needs --output-compression none or block");
+		System.exit(1);
+	    }
+	    asyncOutput = true;
+	    if(resume) {
+		try {
+		    resumeFrom = Checkpoint.load(Checkpoint.fileFor(outputFile));
+		} catch(IOException e) {
+		    System.err.println(e.getMessage());
+		    System.exit(1);
+		}
+		if(resumeFrom == null) {
+		    System.err.println("No checkpoint for " + outputFile + "; starting from the beginning");
+		} else if(!inputFile.equals(resumeFrom.input)) {
+		    System.err.println("The checkpoint for " + outputFile + " is for input " + resumeFrom.input);
+		    System.exit(1);
+		} else if(resumeFrom.complete) {
+		    System.err.println("Nothing to resume: " + resumeFrom);
+		    System.exit(0);
+		} else {
+		    System.err.println("Resuming after " + resumeFrom);
+		    lastInputOffset = resumeFrom.inputOffset;
+		    communicationsWritten = resumeFrom.communications;
+		}
+	    }
+	}
 	try {
-	    pbr = new ProtocolBufferReader(inputFile, Concrete.Communication.class);
+	    if(CommunicationStreamReader.isGzipped(new File(inputFile))) {
+		if(mmapInput)
+		    System.err.println("Input " + inputFile + " is gzipped; not memory mapping it");
+		streamReader = CommunicationStreamReader.open(new File(inputFile));
+	    } else if(mmapInput)
+		mappedReader = new MappedCommunicationReader(new File(inputFile), queueSize,
+							     resumeFrom == null || resumeFrom.inputOffset < 0
+							     ? 0 : resumeFrom.inputOffset);
+	    else
+		pbr = new ProtocolBufferReader(inputFile, Concrete.Communication.class);
+	    // without an offset to seek to (gzipped input, or a checkpoint
+	    // written by a run without --mmap-input), skip what was done
+	    if(resumeFrom != null && (mappedReader == null || resumeFrom.inputOffset < 0))
+		for(long i = 0; i < resumeFrom.communications; i++)
+		    if(readInput() == null)
+			throw new IOException("input has only " + i + " communications");
 	} catch(Exception e){
 	    System.err.println("Trouble reading in protobuf file " + inputFile);
 	    System.err.println(e.getMessage());
 	    System.exit(1);
 	}
 	try {
-	    pbw = new ProtocolBufferWriter(outputFile);
+	    if(asyncOutput || outputCompression != AsyncCommunicationWriter.Compression.NONE)
+		asyncWriter = new AsyncCommunicationWriter(new File(outputFile), outputCompression,
+							   AsyncCommunicationWriter.DEFAULT_BUFFER_BYTES, queueSize,
+							   resumeFrom == null ? -1 : resumeFrom.outputBytes);
+	    else
+		pbw = new ProtocolBufferWriter(outputFile);
 	} catch(Exception e){
 	    System.err.println("Trouble opening new output protobuf file " + outputFile);
 	    System.err.println(e.getMessage());
@@ -76,17 +245,87 @@ public class StanfordAgigaPipe {
 	pipeline = new InMemoryAnnoPipeline(onlyTokenize);
     }
 
+    /** Default settings, no input or output: for annotating in-process (e.g. benchmarks). */
+    StanfordAgigaPipe() {
+	pipeline = new InMemoryAnnoPipeline(onlyTokenize);
+    }
+
+    /**
+     * A worker with the same settings as other, its own InMemoryAnnoPipeline,
+     * and no input or output.
+     */
+    private StanfordAgigaPipe(StanfordAgigaPipe other) {
+	this.debug = other.debug;
+	this.aggregateSectionsByFirst = other.aggregateSectionsByFirst;
+	this.onlyTokenize = other.onlyTokenize;
+	this.viaAgiga = other.viaAgiga;
+	this.sentencePool = other.sentencePool;
+	this.parseCache = other.parseCache;
+	this.parseBudget = other.parseBudget;
+	this.corefWindows = other.corefWindows;
+	this.tool = other.tool;
+	this.incrementalAnnotation = other.incrementalAnnotation;
+	this.mergeEntitySets = other.mergeEntitySets;
+	this.outputLayers = other.outputLayers;
+	this.tokenizeOnly = other.tokenizeOnly;
+	this.pipeline = new InMemoryAnnoPipeline(onlyTokenize);
+    }
+
     public void parseArgs(String[] args){
 	int i = 0;
     	try {
 	    while (i < args.length) {
 		if(args[i].equals("--only-tokenize"))
 		    onlyTokenize = args[++i].equalsIgnoreCase("t");
-		if(args[i].equals("--aggregate-by-first-section-number"))
+		else if(args[i].equals("--annotators"))
+		    profile = AnnotatorProfile.forName(args[++i]);
+		else if(args[i].equals("--output-layers"))
+		    outputLayers = OutputLayers.forName(args[++i]);
+		else if(args[i].equals("--incremental"))
+		    incremental = args[++i].equalsIgnoreCase("t");
+		else if(args[i].equals("--merge-entity-sets"))
+		    mergeEntitySets = args[++i].equalsIgnoreCase("t");
+		else if(args[i].equals("--aggregate-by-first-section-number"))
 		    aggregateSectionsByFirst = args[++i].equals("t");
+		else if (args[i].equals("--via-agiga")) viaAgiga = args[++i].equalsIgnoreCase("t");
 		else if (args[i].equals("--debug")) debug = true;
 		else if (args[i].equals("--input")) inputFile = args[++i];
 		else if (args[i].equals("--output")) outputFile = args[++i];
+		else if (args[i].equals("--input-dir") || args[i].equals("--input-list")) batchInput = args[++i];
+		else if (args[i].equals("--output-dir")) outputDir = args[++i];
+		else if (args[i].equals("--shards")) numShards = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--mmap-input")) mmapInput = args[++i].equalsIgnoreCase("t");
+		else if (args[i].equals("--async-output")) asyncOutput = args[++i].equalsIgnoreCase("t");
+		else if (args[i].equals("--output-compression"))
+		    outputCompression = AsyncCommunicationWriter.Compression.valueOf(args[++i].toUpperCase());
+		else if (args[i].equals("--checkpoint-every")) checkpointEvery = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--resume")) resume = true;
+		else if (args[i].equals("--loader-threads")) loaderThreads = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--metrics-log-sec")) metricsLogSeconds = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--threads")) numThreads = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--queue-size")) queueSize = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--lookahead")) lookahead = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--inflight-tokens")) inflightTokens = Long.parseLong(args[++i]);
+		else if (args[i].equals("--low-memory-fraction")) lowMemoryFraction = Double.parseDouble(args[++i]);
+		else if (args[i].equals("--serve")) servePort = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--serve-batch")) serveBatch = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--unordered-output")) unorderedOutput = true;
+		else if (args[i].equals("--sentence-threads")) sentenceThreads = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--parse-cache-mb")) parseCacheMB = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--parse-cache-file")) parseCacheFile = args[++i];
+		else if (args[i].equals("--max-parse-tokens")) maxParseTokens = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--parse-timeout-ms")) parseTimeoutMillis = Long.parseLong(args[++i]);
+		else if (args[i].equals("--coref-window-sentences")) corefWindowSentences = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--coref-window-tokens")) corefWindowTokens = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--coref-link-windows")) corefLinkWindows = args[++i].equalsIgnoreCase("t");
+		else if (args[i].equals("--stage-threads")) {
+		    String[] counts = args[++i].split(",");
+		    if(counts.length != 3)
+			throw new IllegalArgumentException("--stage-threads needs three counts");
+		    stageThreads = new int[3];
+		    for(int j = 0; j < 3; j++)
+			stageThreads[j] = Integer.parseInt(counts[j].trim());
+		}
 		else{
 		    System.err.println("Invalid option: " + args[i]);
 		    System.err.println(usage);
@@ -98,18 +337,317 @@ public class StanfordAgigaPipe {
 	    System.err.println(usage);
 	    System.exit(1);
 	}
+	if(numThreads < 1) {
+	    System.err.println("--threads must be at least 1");
+	    System.exit(1);
+	}
+	if(sentenceThreads > 1)
+	    sentencePool = new ForkJoinPool(sentenceThreads);
+	if(parseCacheMB > 0) {
+	    try {
+		parseCache = new ParseCache(parseCacheMB, parseCacheFile == null ? null : new File(parseCacheFile));
+	    } catch(IOException e) {
+		System.err.println("Trouble reading parse cache " + parseCacheFile);
+		System.err.println(e.getMessage());
+		System.exit(1);
+	    }
+	}
+	if(corefWindowSentences > 0 || corefWindowTokens > 0)
+	    corefWindows = new CorefWindows(corefWindowSentences, corefWindowTokens, corefLinkWindows);
+	if(onlyTokenize)
+	    profile = AnnotatorProfile.TOKENIZE;
+	onlyTokenize = profile.isTokenizeOnly();
+	InMemoryAnnoPipeline.setProfile(profile);
+	if(debug)
+	    System.err.println("Annotators: " + profile + ", output layers: " + outputLayers);
+	tool = IncrementalAnnotation.toolName(settings());
+	if(incremental)
+	    incrementalAnnotation = new IncrementalAnnotation(tool);
+	if(onlyTokenize)
+	    tokenizeOnly = new TokenizeOnlyAnnotator(tool, incrementalAnnotation);
+	// before any InMemoryAnnoPipeline starts them with the default
+	InMemoryAnnoPipeline.startLoading(loaderThreads);
+	if(resume && checkpointEvery <= 0)
+	    checkpointEvery = DEFAULT_CHECKPOINT_EVERY;
+	if(stageThreads != null)
+	    numThreads = stageThreads[0] + stageThreads[1] + stageThreads[2];
+	if(onlyTokenize && stageThreads != null) {
+	    // nothing to stage: tokenizing is all there is, on all the threads
+	    System.err.println("--only-tokenize: running --stage-threads as --threads " + numThreads);
+	    stageThreads = null;
+	}
+	// room for every thread that may be parsing, and as many stuck on timed out parses
+	if(maxParseTokens > 0 || parseTimeoutMillis > 0)
+	    parseBudget = new ParseBudget(maxParseTokens, parseTimeoutMillis,
+					  2 * numThreads * Math.max(sentenceThreads, 1));
+	if(queueSize < 0)
+	    queueSize = 2 * numThreads;
+	queueSize = Math.max(queueSize, lookahead);
+	if(unorderedOutput && checkpointEvery > 0) {
+	    System.err.println("--checkpoint-every and --resume need ordered output; drop --unordered-output");
+	    System.exit(1);
+	}
+	if((lookahead > 0 || unorderedOutput) && stageThreads != null)
+	    System.err.println("--lookahead and --unordered-output don't apply to --stage-threads; ignoring them");
     }
 
     public void go() throws IOException{
+	PipelineMetrics.registerMBeans();
+	PipelineMetrics.startLogging(metricsLogSeconds);
+	if(servePort >= 0) {
+	    serve();
+	    return;
+	}
+	if(batchInput != null) {
+	    goBatch();
+	    return;
+	}
+	long start = System.nanoTime();
 	int num_communications_processed=0;
-	while(pbr.hasNext()){
-	    Communication comm = (Communication)(pbr.next());
-	    Communication annotatedComm = runPipelineOnCommunicationSectionsAndSentences(comm);
-	    if(debug) 
-		System.err.println(annotatedComm);
-	    pbw.write(annotatedComm);
-	    num_communications_processed++;
+	CommunicationPool.Source source = new CommunicationPool.Source() {
+		public Communication next() throws IOException {
+		    return readCommunication();
+		}
+	    };
+	CommunicationPool.Sink sink = new CommunicationPool.Sink() {
+		public void write(Communication annotatedComm) throws IOException {
+		    if(debug)
+			System.err.println(annotatedComm);
+		    long t = System.nanoTime();
+		    if(asyncWriter != null)
+			asyncWriter.write(annotatedComm);
+		    else
+			pbw.write(annotatedComm);
+		    PipelineMetrics.WRITE.since(t);
+		    PipelineMetrics.countCommunication();
+		    if(checkpointEvery > 0) {
+			lastInputOffset = inputOffsets.poll();
+			if(++communicationsWritten % checkpointEvery == 0)
+			    checkpoint(false);
+		    }
+		}
+	    };
+	if(stageThreads != null) {
+	    List<StanfordAgigaPipe> tokenizers = new ArrayList<StanfordAgigaPipe>();
+	    tokenizers.add(this);
+	    for(int i = 1; i < stageThreads[0]; i++)
+		tokenizers.add(new StanfordAgigaPipe(this));
+	    List<StanfordAgigaPipe> parsers = new ArrayList<StanfordAgigaPipe>();
+	    for(int i = 0; i < stageThreads[1]; i++)
+		parsers.add(new StanfordAgigaPipe(this));
+	    List<StanfordAgigaPipe> converters = new ArrayList<StanfordAgigaPipe>();
+	    for(int i = 0; i < stageThreads[2]; i++)
+		converters.add(new StanfordAgigaPipe(this));
+	    StagedCommunicationPipe staged = new StagedCommunicationPipe(tokenizers, parsers, converters,
+									 queueSize, debug);
+	    AdmissionController admission = newAdmissionController();
+	    staged.setAdmissionController(admission);
+	    num_communications_processed = staged.run(source, sink);
+	    printStats(admission);
+	} else if(numThreads > 1) {
+	    List<StanfordAgigaPipe> workers = new ArrayList<StanfordAgigaPipe>();
+	    workers.add(this);
+	    for(int i = 1; i < numThreads; i++)
+		workers.add(new StanfordAgigaPipe(this));
+	    CommunicationPool pool = new CommunicationPool(workers, queueSize, lookahead > 0, !unorderedOutput, debug);
+	    AdmissionController admission = newAdmissionController();
+	    pool.setAdmissionController(admission);
+	    num_communications_processed = pool.run(source, sink);
+	    printStats(admission);
+	} else {
+	    Communication comm;
+	    while((comm = readCommunication()) != null){
+		sink.write(runPipelineOnCommunicationSectionsAndSentences(comm));
+		num_communications_processed++;
+	    }
+	}
+	if(asyncWriter != null) {
+	    asyncWriter.close();
+	    System.err.println(asyncWriter.stats());
+	} else
+	    pbw.close();
+	if(checkpointEvery > 0)
+	    checkpoint(true);
+	if(mappedReader != null)
+	    mappedReader.close();
+	if(streamReader != null)
+	    streamReader.close();
+	if(parseBudget != null)
+	    System.err.println(parseBudget.stats());
+	if(corefWindows != null)
+	    System.err.println(corefWindows.stats());
+	if(incrementalAnnotation != null)
+	    System.err.println(incrementalAnnotation.stats());
+	if(parseCache != null) {
+	    System.err.println(parseCache.stats());
+	    parseCache.save();
 	}
+	System.err.println(PipelineMetrics.summary());
+	if(!onlyTokenize)
+	    System.err.println(AnnotatorLoader.stats());
+	double seconds = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1) / 1000.0;
+	System.err.printf("Annotated %d communications in %.1f s (%.2f communications/sec, %d thread(s))\n",
+			  num_communications_processed, seconds,
+			  num_communications_processed / seconds, numThreads);
+    }
+
+    // everything that changes the annotations, for the tool name's fingerprint
+    private String settings() {
+	return "annotators=" + Arrays.toString(profile.stages())
+	    + " aggregate-by-first-section-number=" + aggregateSectionsByFirst
+	    + " via-agiga=" + viaAgiga
+	    + " max-parse-tokens=" + maxParseTokens
+	    + " parse-timeout-ms=" + parseTimeoutMillis
+	    + " coref-window=" + corefWindowSentences + "," + corefWindowTokens + "," + corefLinkWindows
+	    + (outputLayers.isAll() ? "" : " output-layers=" + outputLayers);
+    }
+
+    /** A fresh annotator for one Communication, tagging its output with our tool name. */
+    public AgigaConcreteAnnotator newAnnotator() {
+	AgigaConcreteAnnotator annotator = new AgigaConcreteAnnotator(debug, tool, incrementalAnnotation != null, mergeEntitySets);
+	annotator.setOutputLayers(outputLayers);
+	return annotator;
+    }
+
+    // null if neither limit is set
+    private AdmissionController newAdmissionController() {
+	if(inflightTokens <= 0 && lowMemoryFraction <= 0)
+	    return null;
+	return new AdmissionController(inflightTokens, lowMemoryFraction);
+    }
+
+    private static void printStats(AdmissionController admission) {
+	if(admission != null)
+	    System.err.println(admission.stats());
+    }
+
+    /**
+     * Server mode: annotate Communications sent to localhost:servePort on
+     * numThreads workers, until killed.
+     */
+    private void serve() throws IOException {
+	if(stageThreads != null)
+	    System.err.println("--stage-threads doesn't apply to server mode; using " + numThreads + " workers");
+	List<StanfordAgigaPipe> workers = new ArrayList<StanfordAgigaPipe>();
+	workers.add(this);
+	for(int i = 1; i < numThreads; i++)
+	    workers.add(new StanfordAgigaPipe(this));
+	final AnnotationServer server = new AnnotationServer(workers, serveBatch, debug);
+	final AdmissionController admission = newAdmissionController();
+	server.setAdmissionController(admission);
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    System.err.println(server.stats());
+		    printStats(admission);
+		    System.err.println(PipelineMetrics.summary());
+		    if(parseCache != null) {
+			try {
+			    parseCache.save();
+			} catch(IOException e) {
+			    System.err.println("Couldn't save the parse cache: " + e.getMessage());
+			}
+		    }
+		}
+	    });
+	// don't make the first request wait for the models
+	if(!onlyTokenize) {
+	    for(String stage : profile.stages())
+		AnnotatorLoader.get(stage);
+	    System.err.println(AnnotatorLoader.stats());
+	}
+	server.serve(servePort);
+    }
+
+    /**
+     * Batch mode: annotate every file in batchInput on numThreads threads,
+     * writing numShards files to outputDir.
+     */
+    private void goBatch() throws IOException {
+	if(stageThreads != null)
+	    System.err.println("--stage-threads doesn't apply to batch mode; using " + numThreads + " file threads");
+	if(checkpointEvery > 0)
+	    System.err.println("--checkpoint-every and --resume don't apply to batch mode; ignoring them");
+	List<File> inputs = BatchCommunicationPipe.listInputs(new File(batchInput));
+	if(lookahead > 0)
+	    Collections.sort(inputs, new Comparator<File>() {
+		    public int compare(File a, File b) {
+			return Long.compare(b.length(), a.length());
+		    }
+		});
+	File dir = new File(outputDir);
+	if(!dir.isDirectory() && !dir.mkdirs())
+	    throw new IOException("couldn't create output directory " + dir);
+	List<AsyncCommunicationWriter> shards = new ArrayList<AsyncCommunicationWriter>();
+	String suffix = outputCompression == AsyncCommunicationWriter.Compression.NONE ? ".pb" : ".pb.gz";
+	for(int i = 0; i < Math.max(numShards, 1); i++)
+	    shards.add(new AsyncCommunicationWriter(new File(dir, String.format("shard-%05d%s", i, suffix)),
+						    outputCompression, AsyncCommunicationWriter.DEFAULT_BUFFER_BYTES,
+						    queueSize));
+	List<StanfordAgigaPipe> workers = new ArrayList<StanfordAgigaPipe>();
+	workers.add(this);
+	for(int i = 1; i < numThreads; i++)
+	    workers.add(new StanfordAgigaPipe(this));
+	int failed = new BatchCommunicationPipe(workers, mmapInput, debug).run(inputs, shards);
+	for(AsyncCommunicationWriter shard : shards) {
+	    shard.close();
+	    if(debug)
+		System.err.println(shard.stats());
+	}
+	if(parseBudget != null)
+	    System.err.println(parseBudget.stats());
+	if(corefWindows != null)
+	    System.err.println(corefWindows.stats());
+	if(incrementalAnnotation != null)
+	    System.err.println(incrementalAnnotation.stats());
+	if(parseCache != null) {
+	    System.err.println(parseCache.stats());
+	    parseCache.save();
+	}
+	System.err.println(PipelineMetrics.summary());
+	if(!onlyTokenize)
+	    System.err.println(AnnotatorLoader.stats());
+	if(failed > 0)
+	    System.exit(1);
+    }
+
+    /**
+     * Record that the output so far covers communicationsWritten input
+     * Communications, syncing it first unless the run is complete (and the
+     * output closed).
+     */
+    private void checkpoint(boolean complete) throws IOException {
+	long outputBytes = complete ? new File(outputFile).length() : asyncWriter.sync();
+	Checkpoint checkpoint = new Checkpoint(inputFile, lastInputOffset, communicationsWritten,
+					       outputBytes, complete);
+	checkpoint.save(Checkpoint.fileFor(outputFile));
+	if(debug)
+	    System.err.println("Checkpoint: " + checkpoint);
+    }
+
+    /** @return the next input Communication, or null at the end of the input */
+    private Communication readCommunication() throws IOException {
+	long start = System.nanoTime();
+	Communication comm = readInput();
+	PipelineMetrics.READ.since(start);
+	if(comm != null && checkpointEvery > 0)
+	    inputOffsets.add(mappedReader == null ? -1L : mappedReader.offset());
+	return comm;
+    }
+
+    private Communication readInput() throws IOException {
+	if(mappedReader != null)
+	    return mappedReader.next();
+	if(streamReader != null)
+	    return streamReader.next();
+	try {
+	    return pbr.hasNext() ? (Communication)(pbr.next()) : null;
+	} catch(Exception e) {
+	    throw e instanceof IOException ? (IOException) e : new IOException(e);
+	}
+    }
+
+    public Communication annotate(Communication comm) {
+	return runPipelineOnCommunicationSectionsAndSentences(comm);
     }
 
     public AgigaDocument annotate(Annotation annotation) {
@@ -121,49 +659,114 @@ public class StanfordAgigaPipe {
     }
 
     /**
-     * WARNING: This has the side effects of clearing sectionUUIDs and sectionBuffer.
-     * These two clears are imperative to this working correctly.
+     * Hand an annotated aggregate to annotator, which adds all aggregates of
+     * a Communication to it at once in apply().
+     */
+    public void addAnnotations(AgigaConcreteAnnotator annotator, SectionAggregate aggregate) {
+	// the XML holds one set of chains per document: split ones go direct
+	if(viaAgiga && !CorefWindows.isWindowed(aggregate.getAnnotation())) {
+	    AgigaDocument agigaDoc;
+	    try {
+		agigaDoc = pipeline.toAgigaDoc(aggregate.getAnnotation(), outputLayers);
+	    } catch(IOException e) {
+		throw new RuntimeException(e);
+	    }
+	    annotator.add(aggregate.getSectionSegmentationId(), 
+			  aggregate.getSectionIds(),
+			  aggregate.getSentenceSegIds(),
+			  agigaDoc,
+			  aggregate.getAnnotation());
+	} else {
+	    annotator.add(aggregate.getSectionSegmentationId(), 
+			  aggregate.getSectionIds(),
+			  aggregate.getSentenceSegIds(),
+			  aggregate.getAnnotation());
+	}
+    }
+
+    /**
+     * WARNING: This has the side effects of clearing sectionUUIDs, sectionBuffer
+     * and aggregateSections. These clears are imperative to this working correctly.
      */
-    public Communication process(
-				 Communication commToAnnotate,
-				 UUID sectionSegmentationUUID,
-				 List<UUID> sectionUUIDs,
-				 List<UUID> sentenceSegmentationUUIDs,
-				 List<CoreMap> sectionBuffer) {
+    private void flush(
+		       List<SectionAggregate> aggregates,
+		       UUID sectionSegmentationUUID,
+		       List<UUID> sectionUUIDs,
+		       List<UUID> sentenceSegmentationUUIDs,
+		       List<CoreMap> sectionBuffer,
+		       List<Section> aggregateSections) {
 	//first cat all CoreMap objects in sectionBuffer into one
 	if(sectionBuffer==null || sectionBuffer.size()==0){
-	    System.err.println("For communication " + commToAnnotate +", no sentences found on this invocation");
-	    return commToAnnotate;
+	    if(debug)
+		System.err.println("no sentences found on this invocation");
+	    return;
+	}
+	if(incrementalAnnotation != null && incrementalAnnotation.isCurrent(aggregateSections)) {
+	    if(debug)
+		System.err.println("aggregate of " + aggregateSections.size() + " sections is up to date");
+	    sectionBuffer.clear();
+	    sectionUUIDs.clear();
+	    sentenceSegmentationUUIDs.clear();
+	    aggregateSections.clear();
+	    return;
 	}
 	if(debug){
 	    System.err.println("CALL TO PROCESS");
 	    System.err.println("sectionBuffer.size = " + sectionBuffer.size());
 	}
 	Annotation annotation = sentencesToDocument(sectionBuffer);
-	AgigaDocument agigaDoc = annotate(annotation);
-	AgigaConcreteAnnotator t = new AgigaConcreteAnnotator(debug);
-	Communication newcomm = t.annotate(commToAnnotate, 
-					   sectionSegmentationUUID, 
-					   sectionUUIDs,
-					   sentenceSegmentationUUIDs,
-					   agigaDoc);	
+	aggregates.add(new SectionAggregate(sectionSegmentationUUID,
+					    sectionUUIDs,
+					    sentenceSegmentationUUIDs,
+					    annotation));
 	//FINALLY: clear the  lists
 	sectionBuffer.clear(); 
 	sectionUUIDs.clear();
 	sentenceSegmentationUUIDs.clear();
-	return newcomm;
+	aggregateSections.clear();
     }
 
     private Communication runPipelineOnCommunicationSectionsAndSentences(Communication comm) {
+	if(tokenizeOnly != null)
+	    return tokenizeOnly.annotate(comm);
+	AgigaConcreteAnnotator annotator = newAnnotator();
+	for(SectionAggregate aggregate : tokenize(comm)) {
+	    annotateSentences(aggregate);
+	    annotateDocument(aggregate);
+	    addAnnotations(annotator, aggregate);
+	}
+	return annotator.apply(comm);
+    }
+
+    /** pos, lemma and parse, using the sentence pool, parse cache and parse budget if there are any */
+    public void annotateSentences(SectionAggregate aggregate) {
+	InMemoryAnnoPipeline.runSentenceLevelStages(aggregate.getAnnotation(), sentencePool, parseCache, parseBudget);
+    }
+
+    /** ner and dcoref, in windows if the aggregate is over the --coref-window limits */
+    public void annotateDocument(SectionAggregate aggregate) {
+	if(corefWindows != null)
+	    corefWindows.annotate(aggregate.getAnnotation());
+	else
+	    InMemoryAnnoPipeline.runDocumentLevelStages(aggregate.getAnnotation());
+    }
+
+    /**
+     * Tokenize and sentence-split the PASSAGE sections of comm, grouped into
+     * the aggregates that CoreNLP annotates as one document each.
+     */
+    public List<SectionAggregate> tokenize(Communication comm) {
 	if (!comm.hasText())
 	    throw new IllegalArgumentException("Expecting Communication Text.");
 	if (comm.getSectionSegmentationCount() == 0)
 	    throw new IllegalArgumentException("Expecting Communication SectionSegmentations.");
 		
-	Communication annotatedCommunication = comm;
+	long start = System.nanoTime();
+	List<SectionAggregate> aggregates = new ArrayList<SectionAggregate>();
+	if(incrementalAnnotation != null && incrementalAnnotation.isCurrent(comm))
+	    return aggregates;
 	
 	String commText = comm.getText();
-	List<Annotation> finishedAnnotations = new ArrayList<Annotation>();
 	sentenceCount = 1;
 
 	int prevSectionNumber = -1;
@@ -174,6 +777,7 @@ public class StanfordAgigaPipe {
 	List<Section> sections = comm.getSectionSegmentationList().get(0).getSectionList();
 	List<UUID> sectionUUIDs = new ArrayList<UUID>();
 	List<UUID> sentenceSegmentationUUIDs = new ArrayList<UUID>();
+	List<Section> aggregateSections = new ArrayList<Section>();
 	UUID sectionSegmentationUUID = comm.getSectionSegmentation(0).getUuid();
 	for (Section section : sections) {
 	    if ((section.hasKind() && section.getKind() != Section.Kind.PASSAGE) 
@@ -188,38 +792,45 @@ public class StanfordAgigaPipe {
 	       (aggregateSectionsByFirst && 
 		section.getNumberCount()== 0 && 
 		sectionBuffer.size() > 0)){
-		//process previous section-aggregate
-		annotatedCommunication = process(annotatedCommunication,
-						 sectionSegmentationUUID,
-						 sectionUUIDs,
-						 sentenceSegmentationUUIDs,
-						 sectionBuffer);
+		//close previous section-aggregate
+		flush(aggregates,
+		      sectionSegmentationUUID,
+		      sectionUUIDs,
+		      sentenceSegmentationUUIDs,
+		      sectionBuffer,
+		      aggregateSections);
 	    }
 	    sectionUUIDs.add(section.getUuid());
+	    aggregateSections.add(section);
 	    List<Sentence> concreteSentences = section
 		.getSentenceSegmentationList().get(0).getSentenceList();	    
 	    sentenceSegmentationUUIDs.add(section.getSentenceSegmentation(0).getUuid());
 	    for (Sentence sentence : concreteSentences) {	
 		if (!sentence.hasTextSpan())
 		    throw new IllegalArgumentException("Expecting TextSpan from Communication Sentence.");			
-		String sText = commText.substring(sentence.getTextSpan().getStart(), 
-						  sentence.getTextSpan().getEnd());
-		if(sText!=null) {
-		    Annotation initialSentenceAnnotations = pipeline.annotateSentence(sText);
-		    sectionBuffer.add(initialSentenceAnnotations);
-		}
+		Annotation initialSentenceAnnotations = pipeline.annotateSentence(commText,
+										  sentence.getTextSpan().getStart(),
+										  sentence.getTextSpan().getEnd());
+		sectionBuffer.add(initialSentenceAnnotations);
 	    }
 	    if(section.getNumberCount() > 0)
 		prevSectionNumber = currSectionNumber;
 	}
-	if(sectionBuffer.size() > 0){	
-	    annotatedCommunication = process(annotatedCommunication,
-					     sectionSegmentationUUID,
-					     sectionUUIDs,
-					     sentenceSegmentationUUIDs,
-					     sectionBuffer);
+	flush(aggregates,
+	      sectionSegmentationUUID,
+	      sectionUUIDs,
+	      sentenceSegmentationUUIDs,
+	      sectionBuffer,
+	      aggregateSections);
+	PipelineMetrics.TOKENIZE.since(start);
+	for(SectionAggregate aggregate : aggregates) {
+	    List<CoreMap> sentences = aggregate.getAnnotation().get(SentencesAnnotation.class);
+	    int tokens = 0;
+	    for(CoreMap sentence : sentences)
+		tokens += sentence.get(TokensAnnotation.class).size();
+	    PipelineMetrics.countSentences(sentences.size(), tokens);
 	}
-	return annotatedCommunication;
+	return aggregates;
     }
 	
     private List<Communication> readInputCommunications(String path) {
@@ -272,44 +883,41 @@ public class StanfordAgigaPipe {
 	String docText = null;
 	Annotation document = new Annotation(docText);
 	document.set(SentencesAnnotation.class, sentences);
-	List<CoreLabel> docTokens = new ArrayList<CoreLabel>();
+	// sized up front, and filled a token at a time: addAll would copy
+	// each sentence's tokens into a temporary array first
+	int numTokens = 0;
+	for (CoreMap sentAnno : sentences)
+	    if (sentAnno != null)
+		numTokens += sentAnno.get(TokensAnnotation.class).size();
+	List<CoreLabel> docTokens = new ArrayList<CoreLabel>(numTokens);
 	int sentIndex = sentenceCount;
 	int tokenBegin = 0;
+	int i = 0;
 	for (CoreMap sentAnno : sentences) {
 	    if (sentAnno == null) 
 		continue;
 	    List<CoreLabel> sentTokens = sentAnno.get(TokensAnnotation.class);
-	    docTokens.addAll(sentTokens);
 	    int tokenEnd = tokenBegin + sentTokens.size();
 	    sentAnno.set(TokenBeginAnnotation.class, tokenBegin);
 	    sentAnno.set(TokenEndAnnotation.class, tokenEnd);
 	    sentAnno.set(SentenceIndexAnnotation.class, sentIndex);
+	    // character offsets are into the tokens joined by single spaces
+	    int charBegin = i;
+	    sentAnno.set(CharacterOffsetBeginAnnotation.class, charBegin);
+	    for (CoreLabel token : sentTokens) {
+		docTokens.add(token);
+		token.set(CharacterOffsetBeginAnnotation.class, i);
+		i += token.get(TextAnnotation.class).length();
+		token.set(CharacterOffsetEndAnnotation.class, i);
+		i++; // Skip space
+	    }
+	    // a sentence with no tokens (e.g. only whitespace) is empty, not [begin, begin - 1)
+	    sentAnno.set(CharacterOffsetEndAnnotation.class, sentTokens.isEmpty() ? charBegin : i - 1);
 	    sentIndex++;
 	    sentenceCount++;
 	    tokenBegin = tokenEnd;
 	}
 	document.set(TokensAnnotation.class, docTokens);
-	int i = 0;
-	for (CoreLabel token : docTokens) {
-	    String tokenText = token.get(TextAnnotation.class);
-	    token.set(CharacterOffsetBeginAnnotation.class, i);
-	    i += tokenText.length();
-	    token.set(CharacterOffsetEndAnnotation.class, i);
-	    i++; // Skip space
-	}
-	for (CoreMap sentenceAnnotation : sentences) {
-	    if (sentenceAnnotation == null) {
-		continue;
-	    }
-	    List<CoreLabel> sentenceTokens = sentenceAnnotation
-		.get(TokensAnnotation.class);
-	    sentenceAnnotation.set(CharacterOffsetBeginAnnotation.class,
-				   sentenceTokens.get(0).get(
-							     CharacterOffsetBeginAnnotation.class));
-	    sentenceAnnotation.set(CharacterOffsetEndAnnotation.class,
-				   sentenceTokens.get(sentenceTokens.size() - 1).get(
-										     CharacterOffsetEndAnnotation.class));
-	}
 	return document;
     }
 
@@ -0,0 +1,291 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.jhu.hlt.concrete.Concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Concrete.Entity;
+import edu.jhu.hlt.concrete.Concrete.EntityMention;
+import edu.jhu.hlt.concrete.Concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.Concrete.EntitySet;
+import edu.jhu.hlt.concrete.Concrete.Parse;
+import edu.jhu.hlt.concrete.Concrete.TaggedToken;
+import edu.jhu.hlt.concrete.Concrete.TextSpan;
+import edu.jhu.hlt.concrete.Concrete.Token;
+import edu.jhu.hlt.concrete.Concrete.TokenRefSequence;
+import edu.jhu.hlt.concrete.Concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Concrete.Tokenization;
+import edu.jhu.hlt.concrete.Concrete.UUID;
+import edu.jhu.hlt.concrete.util.IdUtil;
+import edu.stanford.nlp.dcoref.CorefChain;
+import edu.stanford.nlp.dcoref.CorefChain.CorefMention;
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations.CorefChainAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetBeginAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetEndAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.IndexAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.TokensAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.ParserAnnotatorUtils;
+import edu.stanford.nlp.trees.HeadFinder;
+import edu.stanford.nlp.trees.SemanticHeadFinder;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations.TreeAnnotation;
+import edu.stanford.nlp.trees.semgraph.SemanticGraph;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.BasicDependenciesAnnotation;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation;
+import edu.stanford.nlp.trees.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Converts a CoreNLP document Annotation straight into Concrete
+ * Tokenizations, EntityMentions and Entities.
+ *
+ * This produces the same layers as going through
+ * InMemoryAnnoPipeline.stanfordToXML, the agiga reader and AgigaConverter,
+ * without building, serializing and re-parsing the XML document.
+ *
+ * Only the layers in OutputLayers are converted; for the others nothing is
+ * built, and the dependency graphs aren't regenerated if no kind of
+ * dependency parse is written.
+ */
+public class StanfordConcreteConverter {
+
+    private static final HeadFinder headFinder = new SemanticHeadFinder();
+
+    private final AnnotationMetadata metadata;
+    private final OutputLayers layers;
+
+    public StanfordConcreteConverter(AnnotationMetadata metadata) {
+	this(metadata, OutputLayers.ALL);
+    }
+
+    public StanfordConcreteConverter(AnnotationMetadata metadata, OutputLayers layers) {
+	this.metadata = metadata;
+	this.layers = layers;
+    }
+
+    /** One Tokenization per sentence of the document, in order. */
+    public List<Tokenization> convertSentences(Annotation document) {
+	List<CoreMap> sentences = document.get(SentencesAnnotation.class);
+	List<Tokenization> tokenizations = new ArrayList<Tokenization>(sentences.size());
+	for(CoreMap sentence : sentences)
+	    tokenizations.add(convertSentence(sentence));
+	return tokenizations;
+    }
+
+    public Tokenization convertSentence(CoreMap sentence) {
+	List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+	String fallback = sentence.get(ParseBudget.ParseFallbackAnnotation.class);
+	// flag sentences whose parse was replaced by a flat tree
+	AnnotationMetadata sentenceMetadata = fallback == null ? metadata : fallbackMetadata(metadata, fallback);
+	Tokenization.Builder tb = Tokenization.newBuilder()
+	    .setUuid(IdUtil.generateUUID())
+	    .setMetadata(sentenceMetadata)
+	    .setKind(Tokenization.Kind.TOKEN_LIST);
+	// null for the layers left out
+	TokenTagging.Builder posTags = layers.has("pos") ? newTagging() : null;
+	TokenTagging.Builder nerTags = layers.has("ner") ? newTagging() : null;
+	TokenTagging.Builder lemmas = layers.has("lemma") ? newTagging() : null;
+
+	int tokenId = 0;
+	for(CoreLabel token : tokens) {
+	    tb.addToken(Token.newBuilder()
+			.setTokenId(tokenId)
+			.setText(token.word())
+			.setTextSpan(TextSpan.newBuilder()
+				     .setStart(token.get(CharacterOffsetBeginAnnotation.class))
+				     .setEnd(token.get(CharacterOffsetEndAnnotation.class))));
+	    addTag(posTags, token.tag(), tokenId);
+	    addTag(nerTags, token.ner(), tokenId);
+	    addTag(lemmas, token.lemma(), tokenId);
+	    tokenId++;
+	}
+	if(posTags != null && posTags.getTaggedTokenCount() > 0)
+	    tb.addPosTags(posTags);
+	if(nerTags != null && nerTags.getTaggedTokenCount() > 0)
+	    tb.addNerTags(nerTags);
+	if(lemmas != null && lemmas.getTaggedTokenCount() > 0)
+	    tb.addLemmas(lemmas);
+
+	Tree tree = sentence.get(TreeAnnotation.class);
+	if(tree != null) {
+	    // same as stanfordToXML: regenerate the dependency graphs from
+	    // the final tree, since dcoref may have touched them
+	    if(fallback == null && layers.hasDependencies()) {
+		try {
+		    ParserAnnotatorUtils.fillInParseAnnotations(false, sentence, tree);
+		} catch(Exception e) {
+		    // keep whatever graphs the parser produced
+		}
+	    }
+	    if(layers.has("parse"))
+		tb.addParse(convertParse(tree));
+	    // dependency parses are known by position: those left out keep
+	    // theirs with an empty placeholder
+	    if(layers.hasDependencies()) {
+		for(String flavor : OutputLayers.DEPENDENCY_LAYERS) {
+		    if(!layers.has(flavor)) {
+			tb.addDependencyParse(OutputLayers.placeholder(flavor, sentenceMetadata));
+			continue;
+		    }
+		    DependencyParse.Builder deps = convertDependencies(dependencies(sentence, flavor)).toBuilder();
+		    if(fallback != null)
+			deps.setMetadata(sentenceMetadata);
+		    tb.addDependencyParse(deps);
+		}
+	    }
+	    if(fallback != null) {
+		for(int i = 0; i < tb.getParseCount(); i++)
+		    tb.getParseBuilder(i).setMetadata(sentenceMetadata);
+	    }
+	}
+	return tb.build();
+    }
+
+    /** metadata, flagged for a sentence given a flat fallback parse (see ParseBudget) */
+    static AnnotationMetadata fallbackMetadata(AnnotationMetadata metadata, String reason) {
+	return metadata.toBuilder().setTool(metadata.getTool() + " (parse fallback: " + reason + ")").build();
+    }
+
+    // the sentence's graph for one of OutputLayers.DEPENDENCY_LAYERS
+    private static SemanticGraph dependencies(CoreMap sentence, String flavor) {
+	if(flavor.equals("basic-deps"))
+	    return sentence.get(BasicDependenciesAnnotation.class);
+	if(flavor.equals("collapsed-deps"))
+	    return sentence.get(CollapsedDependenciesAnnotation.class);
+	return sentence.get(CollapsedCCProcessedDependenciesAnnotation.class);
+    }
+
+    private TokenTagging.Builder newTagging() {
+	return TokenTagging.newBuilder()
+	    .setUuid(IdUtil.generateUUID())
+	    .setMetadata(metadata);
+    }
+
+    private static void addTag(TokenTagging.Builder tagging, String tag, int tokenId) {
+	if(tag != null)
+	    tagging.addTaggedToken(TaggedToken.newBuilder()
+				   .setTokenId(tokenId)
+				   .setTag(tag));
+    }
+
+    /**
+     * Constituents are numbered in pre-order. Pre-terminals are the lowest
+     * constituents and cover exactly one token.
+     */
+    public Parse convertParse(Tree root) {
+	Parse.Builder pb = Parse.newBuilder()
+	    .setUuid(IdUtil.generateUUID())
+	    .setMetadata(metadata);
+	addConstituent(pb, root, new int[] {0});
+	return pb.build();
+    }
+
+    // returns the constituent id of t; nextToken[0] is the id of the next unseen token
+    private int addConstituent(Parse.Builder pb, Tree t, int[] nextToken) {
+	int id = pb.getConstituentCount();
+	pb.addConstituentBuilder()
+	    .setId(id)
+	    .setTag(t.value());
+	TokenRefSequence.Builder span = TokenRefSequence.newBuilder();
+	if(t.isPreTerminal()) {
+	    span.addTokenId(nextToken[0]++);
+	} else {
+	    Tree head = t.isLeaf() ? null : headFinder.determineHead(t);
+	    Tree[] children = t.children();
+	    for(int i = 0; i < children.length; i++) {
+		int first = nextToken[0];
+		int childId = addConstituent(pb, children[i], nextToken);
+		Parse.Constituent.Builder cb = pb.getConstituentBuilder(id);
+		cb.addChild(childId);
+		if(children[i] == head)
+		    cb.setHeadChildIndex(i);
+		for(int tok = first; tok < nextToken[0]; tok++)
+		    span.addTokenId(tok);
+	    }
+	}
+	pb.getConstituentBuilder(id).setTokenSequence(span);
+	return id;
+    }
+
+    /**
+     * Same layout as InMemoryAnnoPipeline.addDependencyToXML, but with 0-based
+     * token ids: the root gets no governor.
+     */
+    public DependencyParse convertDependencies(SemanticGraph semGraph) {
+	DependencyParse.Builder db = DependencyParse.newBuilder()
+	    .setUuid(IdUtil.generateUUID())
+	    .setMetadata(metadata);
+	if(semGraph == null || semGraph.edgeCount() == 0)
+	    return db.build();
+	try {
+	    int root = semGraph.getFirstRoot().get(IndexAnnotation.class);
+	    db.addDependency(DependencyParse.Dependency.newBuilder()
+			     .setDep(root - 1)
+			     .setEdgeType("root"));
+	} catch(Exception e) {
+	    // no root in the graph
+	}
+	for(SemanticGraphEdge edge : semGraph.edgeListSorted()) {
+	    db.addDependency(DependencyParse.Dependency.newBuilder()
+			     .setGov(edge.getSource().index() - 1)
+			     .setDep(edge.getTarget().index() - 1)
+			     .setEdgeType(edge.getRelation().toString().replaceAll("\\s+", "")));
+	}
+	return db.build();
+    }
+
+    /**
+     * Add one Entity per dcoref chain (singletons excluded, as in the XML
+     * output) to entities, and its mentions to mentions.
+     *
+     * @param tokenizations the result of convertSentences(document)
+     */
+    public void convertCoref(Annotation document, List<Tokenization> tokenizations,
+			     EntityMentionSet.Builder mentions, EntitySet.Builder entities) {
+	Map<Integer, CorefChain> chains = document.get(CorefChainAnnotation.class);
+	if(chains == null)
+	    return;
+	for(CorefChain chain : new TreeMap<Integer, CorefChain>(chains).values()) {
+	    List<CorefMention> chainMentions = chain.getMentionsInTextualOrder();
+	    if(chainMentions.size() <= 1)
+		continue;
+	    entities.addEntity(convertChain(chain, chainMentions, tokenizations, 0, mentions));
+	}
+    }
+
+    /**
+     * @param sentenceOffset index in tokenizations of the first sentence of
+     *        the document the chain was found in
+     */
+    public Entity convertChain(CorefChain chain, List<CorefMention> chainMentions,
+			       List<Tokenization> tokenizations, int sentenceOffset,
+			       EntityMentionSet.Builder mentions) {
+	Entity.Builder eb = Entity.newBuilder()
+	    .setUuid(IdUtil.generateUUID());
+	CorefMention representative = chain.getRepresentativeMention();
+	if(representative != null)
+	    eb.setCanonicalName(representative.mentionSpan);
+	for(CorefMention m : chainMentions) {
+	    Tokenization tokenization = tokenizations.get(sentenceOffset + m.sentNum - 1);
+	    TokenRefSequence.Builder trs = TokenRefSequence.newBuilder()
+		.setTokenizationId(tokenization.getUuid())
+		.setAnchorTokenId(m.headIndex - 1);
+	    for(int tok = m.startIndex - 1; tok < m.endIndex - 1; tok++)
+		trs.addTokenId(tok);
+	    UUID mentionId = IdUtil.generateUUID();
+	    mentions.addMention(EntityMention.newBuilder()
+				.setUuid(mentionId)
+				.setTokens(trs)
+				.setText(m.mentionSpan));
+	    eb.addMention(mentionId);
+	}
+	return eb.build();
+    }
+}
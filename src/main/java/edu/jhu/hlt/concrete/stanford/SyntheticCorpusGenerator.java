@@ -0,0 +1,246 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.jhu.hlt.concrete.Concrete;
+import edu.jhu.hlt.concrete.Concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Concrete.Communication;
+import edu.jhu.hlt.concrete.Concrete.CommunicationGUID;
+import edu.jhu.hlt.concrete.Concrete.Section;
+import edu.jhu.hlt.concrete.Concrete.SectionSegmentation;
+import edu.jhu.hlt.concrete.Concrete.SentenceSegmentation;
+import edu.jhu.hlt.concrete.io.ProtocolBufferWriter;
+import edu.jhu.hlt.concrete.util.ProtoFactory;
+
+/**
+ * Writes Communications shaped like MakeSmallConcrete's (PASSAGE sections,
+ * one SentenceSegmentation each, sentences given by TextSpans) but at any
+ * scale, for throughput and memory testing. Everything, UUIDs included, is
+ * drawn from Randoms seeded with --seed, and the metadata timestamp is
+ * fixed, so the same arguments give the same corpus, byte for byte.
+ */
+public class SyntheticCorpusGenerator {
+
+    static final String usage = "Usage: SyntheticCorpusGenerator --output path/to/file.pb [options]\n"
+	+ "  Stops at whichever of --communications and --target-mb comes first (at least one is required).\n"
+	+ "       --communications N\n\t\tnumber of communications to write\n"
+	+ "       --target-mb N\n\t\ttotal size of the output, in MB\n"
+	+ "       --files N\n\t\tspread the output round-robin over N files, path-00000.pb ... (default: 1)\n"
+	+ "       --sections MIN,MAX\n\t\tsections per communication (default: 5,30)\n"
+	+ "       --sentences MIN,MAX\n\t\tsentences per section (default: 1,6)\n"
+	+ "       --sentence-tokens MEAN,SD\n\t\tsentence length in tokens, log-normally distributed (default: 23,12)\n"
+	+ "       --max-sentence-tokens N\n\t\tcap on sentence length (default: 250)\n"
+	+ "       --numbered-share F\n\t\tfraction of sections with section numbers, in runs that aggregate together (default: 0.5)\n"
+	+ "       --duplicate-rate F\n\t\tfraction of sentences repeating an earlier sentence word for word (default: 0.05)\n"
+	+ "       --seed N\n\t\trandom seed (default: 0)\n";
+
+    // filler vocabulary, roughly Zipfian by position
+    private static final String[] WORDS = {
+	"the", ",", "of", "to", "and", "a", "in", "said", "'s", "for", "that", "on", "is", "was", "with",
+	"he", "it", "by", "at", "as", "from", "his", "have", "be", "has", "but", "are", "an", "not", "its",
+	"they", "were", "had", "year", "who", "percent", "would", "government", "will", "been", "this",
+	"which", "their", "after", "new", "people", "also", "more", "two", "officials", "president",
+	"minister", "last", "state", "one", "police", "first", "country", "told", "week", "military",
+	"company", "market", "city", "election", "Tuesday", "Monday", "United", "States",
+	"China", "Baghdad", "Washington", "agency", "reported", "according", "killed", "talks", "million",
+	"billion", "prices", "oil", "party", "security", "court", "union", "leaders", "statement", "trade"
+    };
+
+    private String output = null;
+    private long communications = Long.MAX_VALUE;
+    private long targetBytes = Long.MAX_VALUE;
+    private int files = 1;
+    private int[] sections = {5, 30};
+    private int[] sentences = {1, 6};
+    private double meanTokens = 23;
+    private double sdTokens = 12;
+    private int maxTokens = 250;
+    private double numberedShare = 0.5;
+    private double duplicateRate = 0.05;
+    private long seed = 0;
+
+    // the metadata timestamp of every corpus: 2013-01-01
+    static final long TIMESTAMP = 1356998400L;
+
+    private Random random;
+    // for UUIDs, apart from random so the text doesn't depend on how many are drawn
+    private Random uuids;
+    // earlier sentences, for duplicates
+    private final List<String> seen = new ArrayList<String>();
+    private static final int MAX_SEEN = 10000;
+
+    public static void main(String[] args) throws Exception {
+	SyntheticCorpusGenerator generator = new SyntheticCorpusGenerator();
+	generator.parseArgs(args);
+	generator.generate();
+    }
+
+    public void parseArgs(String[] args) {
+	int i = 0;
+	try {
+	    while(i < args.length) {
+		if(args[i].equals("--output")) output = args[++i];
+		else if(args[i].equals("--communications")) communications = Long.parseLong(args[++i]);
+		else if(args[i].equals("--target-mb")) targetBytes = (long) (Double.parseDouble(args[++i]) * 1024 * 1024);
+		else if(args[i].equals("--files")) files = Integer.parseInt(args[++i]);
+		else if(args[i].equals("--sections")) sections = range(args[++i]);
+		else if(args[i].equals("--sentences")) sentences = range(args[++i]);
+		else if(args[i].equals("--sentence-tokens")) {
+		    String[] ms = args[++i].split(",");
+		    meanTokens = Double.parseDouble(ms[0]);
+		    sdTokens = Double.parseDouble(ms[1]);
+		}
+		else if(args[i].equals("--max-sentence-tokens")) maxTokens = Integer.parseInt(args[++i]);
+		else if(args[i].equals("--numbered-share")) numberedShare = Double.parseDouble(args[++i]);
+		else if(args[i].equals("--duplicate-rate")) duplicateRate = Double.parseDouble(args[++i]);
+		else if(args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+		else {
+		    System.err.println("Invalid option: " + args[i]);
+		    System.err.println(usage);
+		    System.exit(1);
+		}
+		i++;
+	    }
+	} catch(Exception e) {
+	    System.err.println(usage);
+	    System.exit(1);
+	}
+	if(output == null || (communications == Long.MAX_VALUE && targetBytes == Long.MAX_VALUE)
+	   || files < 1 || meanTokens <= 0 || sdTokens < 0) {
+	    System.err.println(usage);
+	    System.exit(1);
+	}
+    }
+
+    private static int[] range(String s) {
+	String[] mm = s.split(",");
+	int[] r = {Integer.parseInt(mm[0]), Integer.parseInt(mm[mm.length - 1])};
+	if(r[0] < 1 || r[1] < r[0])
+	    throw new IllegalArgumentException("bad range " + s);
+	return r;
+    }
+
+    public void generate() throws Exception {
+	random = new Random(seed);
+	uuids = new Random(~seed);
+	List<ProtocolBufferWriter> writers = new ArrayList<ProtocolBufferWriter>();
+	for(int f = 0; f < files; f++)
+	    writers.add(new ProtocolBufferWriter(files == 1 ? output : fileName(output, f)));
+	long bytes = 0;
+	long n = 0;
+	long sentenceCount = 0;
+	while(n < communications && bytes < targetBytes) {
+	    Communication comm = makeCommunication(n);
+	    writers.get((int) (n % files)).write(comm);
+	    int size = comm.getSerializedSize();
+	    bytes += size + (32 - Integer.numberOfLeadingZeros(size | 1) + 6) / 7;	// and its varint length
+	    for(Section section : comm.getSectionSegmentation(0).getSectionList())
+		sentenceCount += section.getSentenceSegmentation(0).getSentenceCount();
+	    n++;
+	}
+	for(ProtocolBufferWriter writer : writers)
+	    writer.close();
+	System.err.printf("Wrote %d communications, %d sentences, %.1f MB to %d file(s)\n",
+			  n, sentenceCount, bytes / (1024.0 * 1024.0), files);
+    }
+
+    /** path-00000.pb for path.pb, or path-00000 for path */
+    static String fileName(String path, int f) {
+	int dot = path.lastIndexOf('.');
+	if(dot <= path.lastIndexOf('/'))
+	    dot = path.length();
+	return String.format("%s-%05d%s", path.substring(0, dot), f, path.substring(dot));
+    }
+
+    private Communication makeCommunication(long n) {
+	CommunicationGUID guid = ProtoFactory.generateCommGuid("synthetic", Long.toString(n));
+	Communication.Builder communication = Communication.newBuilder()
+	    .setUuid(nextUuid())
+	    .setGuid(guid)
+	    .setKind(Communication.Kind.NEWS);
+	AnnotationMetadata metadata = AnnotationMetadata.newBuilder()
+	    .setTool("SyntheticCorpusGenerator seed=" + seed)
+	    .setTimestamp(TIMESTAMP)
+	    .build();
+	SectionSegmentation.Builder sectionSegmentation = communication.addSectionSegmentationBuilder()
+	    .setUuid(nextUuid())
+	    .setMetadata(metadata);
+
+	StringBuilder text = new StringBuilder();
+	int numSections = between(sections);
+	int group = 0;
+	int inGroup = 0;
+	for(int s = 0; s < numSections; s++) {
+	    Section.Builder section = sectionSegmentation.addSectionBuilder()
+		.setUuid(nextUuid())
+		.setKind(Section.Kind.PASSAGE);
+	    // numbered sections come in runs of 1-3 sharing a lead number,
+	    // like MakeSmallConcrete's pairs
+	    if(random.nextDouble() < numberedShare) {
+		if(inGroup == 0 || inGroup >= 1 + random.nextInt(3)) {
+		    group++;
+		    inGroup = 0;
+		}
+		section.addNumber(group).addNumber(inGroup++);
+	    } else {
+		inGroup = 0;
+	    }
+	    SentenceSegmentation.Builder sentSeg = section.addSentenceSegmentationBuilder()
+		.setUuid(nextUuid())
+		.setMetadata(metadata);
+	    int numSentences = between(sentences);
+	    for(int k = 0; k < numSentences; k++) {
+		String sentence = makeSentence();
+		int start = text.length();
+		text.append(sentence);
+		sentSeg.addSentenceBuilder()
+		    .setUuid(nextUuid())
+		    .setTextSpan(Concrete.TextSpan.newBuilder().setStart(start).setEnd(text.length()));
+		text.append(k + 1 < numSentences ? " " : "\n\n");
+	    }
+	}
+	communication.setText(text.toString());
+	return communication.build();
+    }
+
+    // a random (version 4) UUID, from uuids
+    private Concrete.UUID nextUuid() {
+	long high = (uuids.nextLong() & ~0xf000L) | 0x4000L;
+	long low = (uuids.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+	return Concrete.UUID.newBuilder().setHigh(high).setLow(low).build();
+    }
+
+    private String makeSentence() {
+	if(!seen.isEmpty() && random.nextDouble() < duplicateRate)
+	    return seen.get(random.nextInt(seen.size()));
+	double sigma2 = Math.log(1 + (sdTokens * sdTokens) / (meanTokens * meanTokens));
+	double mu = Math.log(meanTokens) - sigma2 / 2;
+	int tokens = (int) Math.round(Math.exp(mu + Math.sqrt(sigma2) * random.nextGaussian()));
+	tokens = Math.max(1, Math.min(maxTokens, tokens));
+	StringBuilder sb = new StringBuilder();
+	for(int t = 0; t < tokens; t++) {
+	    // favour the front of the list: a cheap Zipf stand-in
+	    String word = WORDS[(int) (WORDS.length * Math.pow(random.nextDouble(), 2))];
+	    while(t == 0 && !Character.isLetter(word.charAt(0)))
+		word = WORDS[random.nextInt(WORDS.length)];
+	    if(t == 0)
+		word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+	    else
+		sb.append(' ');
+	    sb.append(word);
+	}
+	sb.append(" .");
+	String sentence = sb.toString();
+	if(seen.size() < MAX_SEEN)
+	    seen.add(sentence);
+	else
+	    seen.set(random.nextInt(MAX_SEEN), sentence);
+	return sentence;
+    }
+
+    private int between(int[] range) {
+	return range[0] + random.nextInt(range[1] - range[0] + 1);
+    }
+}
@@ -0,0 +1,120 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.jhu.hlt.concrete.Concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Concrete.Communication;
+import edu.jhu.hlt.concrete.Concrete.Section;
+import edu.jhu.hlt.concrete.Concrete.SectionSegmentation;
+import edu.jhu.hlt.concrete.Concrete.Sentence;
+import edu.jhu.hlt.concrete.Concrete.SentenceSegmentation;
+import edu.jhu.hlt.concrete.Concrete.TextSpan;
+import edu.jhu.hlt.concrete.Concrete.Token;
+import edu.jhu.hlt.concrete.Concrete.Tokenization;
+import edu.jhu.hlt.concrete.Concrete.UUID;
+import edu.jhu.hlt.concrete.util.IdUtil;
+import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetBeginAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations.CharacterOffsetEndAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
+
+/**
+ * The --only-tokenize path: runs the PTB tokenizer over each sentence of
+ * the PASSAGE sections and adds a TOKEN_LIST Tokenization to it, in one
+ * pass over a single Communication builder.
+ *
+ * Unlike the full pipeline it builds no CoreNLP document, aggregates or
+ * UUID indexes, and nothing is converted afterwards: a token goes straight
+ * from the tokenizer to a Concrete Token. Token TextSpans are offsets into
+ * the Communication text.
+ *
+ * Thread-safe; one instance can serve every worker.
+ */
+public class TokenizeOnlyAnnotator implements CommunicationAnnotator {
+
+    // the same options as PTBTokenizerAnnotator
+    static final String OPTIONS = "invertible,ptb3Escaping=true";
+
+    private final TokenizerFactory<CoreLabel> factory =
+	PTBTokenizer.factory(new CoreLabelTokenFactory(), OPTIONS);
+    private final AnnotationMetadata metadata;
+    // null unless --incremental t
+    private final IncrementalAnnotation incremental;
+
+    /**
+     * @param tool the tool name in the Tokenizations' metadata
+     * @param incremental if not null, sections already tokenized by this
+     *        configuration are left alone
+     */
+    public TokenizeOnlyAnnotator(String tool, IncrementalAnnotation incremental) {
+	this.metadata = AnnotationMetadata.newBuilder()
+	    .setTool(tool)
+	    .setTimestamp(System.currentTimeMillis() / 1000)
+	    .build();
+	this.incremental = incremental;
+    }
+
+    public Communication annotate(Communication comm) {
+	if (!comm.hasText())
+	    throw new IllegalArgumentException("Expecting Communication Text.");
+	if (comm.getSectionSegmentationCount() == 0)
+	    throw new IllegalArgumentException("Expecting Communication SectionSegmentations.");
+	if(incremental != null && incremental.isCurrent(comm))
+	    return comm;
+	long start = System.nanoTime();
+	String text = comm.getText();
+	Communication.Builder newComm = comm.toBuilder();
+	SectionSegmentation.Builder sections = newComm.getSectionSegmentationBuilder(0);
+	Set<UUID> replaced = new HashSet<UUID>();
+	int numSentences = 0;
+	int numTokens = 0;
+	for(int s = 0; s < sections.getSectionCount(); s++) {
+	    Section section = sections.getSection(s);
+	    if((section.hasKind() && section.getKind() != Section.Kind.PASSAGE)
+	       || section.getSentenceSegmentationCount() == 0)
+		continue;
+	    if(incremental != null && incremental.isCurrent(section))
+		continue;
+	    SentenceSegmentation.Builder sentSeg = sections.getSectionBuilder(s).getSentenceSegmentationBuilder(0);
+	    for(int i = 0; i < sentSeg.getSentenceCount(); i++) {
+		Sentence.Builder sentence = sentSeg.getSentenceBuilder(i);
+		if (!sentence.hasTextSpan())
+		    throw new IllegalArgumentException("Expecting TextSpan from Communication Sentence.");
+		if(incremental != null)
+		    AgigaConcreteAnnotator.removeOurs(sentence, replaced);
+		Tokenization tokenization = tokenize(text, sentence.getTextSpan().getStart(), sentence.getTextSpan().getEnd());
+		sentence.addTokenization(tokenization);
+		numSentences++;
+		numTokens += tokenization.getTokenCount();
+	    }
+	}
+	if(!replaced.isEmpty())
+	    AgigaConcreteAnnotator.removeEntities(newComm, replaced);
+	PipelineMetrics.TOKENIZE.since(start);
+	PipelineMetrics.countSentences(numSentences, numTokens);
+	return newComm.build();
+    }
+
+    /** A Tokenization of text[begin, end). */
+    public Tokenization tokenize(String text, int begin, int end) {
+	Tokenization.Builder tb = Tokenization.newBuilder()
+	    .setUuid(IdUtil.generateUUID())
+	    .setMetadata(metadata)
+	    .setKind(Tokenization.Kind.TOKEN_LIST);
+	List<CoreLabel> tokens = factory.getTokenizer(new CharSequenceReader(text, begin, end)).tokenize();
+	int tokenId = 0;
+	for(CoreLabel token : tokens) {
+	    tb.addToken(Token.newBuilder()
+			.setTokenId(tokenId++)
+			.setText(token.word())
+			.setTextSpan(TextSpan.newBuilder()
+				     .setStart(begin + token.get(CharacterOffsetBeginAnnotation.class))
+				     .setEnd(begin + token.get(CharacterOffsetEndAnnotation.class))));
+	}
+	return tb.build();
+    }
+}
@@ -0,0 +1,221 @@
+package edu.jhu.hlt.concrete.stanford;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.jhu.agiga.AgigaCoref;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.hlt.concrete.Concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Concrete.Communication;
+import edu.jhu.hlt.concrete.Concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Concrete.Entity;
+import edu.jhu.hlt.concrete.Concrete.EntityMention;
+import edu.jhu.hlt.concrete.Concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.Concrete.EntitySet;
+import edu.jhu.hlt.concrete.Concrete.Parse;
+import edu.jhu.hlt.concrete.Concrete.TaggedToken;
+import edu.jhu.hlt.concrete.Concrete.Token;
+import edu.jhu.hlt.concrete.Concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Concrete.Tokenization;
+import edu.jhu.hlt.concrete.Concrete.UUID;
+import edu.jhu.hlt.concrete.agiga.AgigaConverter;
+import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
+import edu.stanford.nlp.pipeline.Annotation;
+
+/**
+ * The direct conversion (StanfordConcreteConverter) must give the same
+ * layers as the --via-agiga path (stanfordToXML, the agiga reader and
+ * AgigaConverter) on small-sample/small-sample.pb. UUIDs differ, so
+ * mentions are compared by sentence and token positions.
+ *
+ * The first sentence of the sample is given a flat fallback parse, as
+ * ParseBudget does for sentences it won't parse, after all the stages
+ * ran: both paths must flag it and write no dependencies for it.
+ */
+public class StanfordConcreteConverterTest {
+
+    private static final String FALLBACK = "test";
+    private static final AnnotationMetadata metadata = AnnotationMetadata.newBuilder()
+	.setTool(IncrementalAnnotation.TOOL)
+	.setTimestamp(0)
+	.build();
+
+    // one entry per section aggregate of the sample
+    private static final List<List<Tokenization>> viaAgiga = new ArrayList<List<Tokenization>>();
+    private static final List<List<Tokenization>> direct = new ArrayList<List<Tokenization>>();
+    private static final List<List<String>> viaAgigaEntities = new ArrayList<List<String>>();
+    private static final List<List<String>> directEntities = new ArrayList<List<String>>();
+
+    @BeforeClass
+    public static void annotateSample() throws Exception {
+	CommunicationStreamReader reader = CommunicationStreamReader.open(new File("small-sample/small-sample.pb"));
+	Communication comm;
+	try {
+	    comm = reader.next();
+	} finally {
+	    reader.close();
+	}
+	InMemoryAnnoPipeline pipeline = new InMemoryAnnoPipeline(false);
+	StanfordConcreteConverter converter = new StanfordConcreteConverter(metadata);
+	for(SectionAggregate aggregate : new StanfordAgigaPipe().tokenize(comm)) {
+	    Annotation annotation = aggregate.getAnnotation();
+	    InMemoryAnnoPipeline.runStages(annotation);
+	    if(direct.isEmpty())
+		ParseBudget.fallback(annotation.get(SentencesAnnotation.class).get(0), FALLBACK);
+
+	    // agiga first: both regenerate the dependency graphs from the tree
+	    AgigaDocument agigaDoc = pipeline.toAgigaDoc(annotation);
+	    List<Tokenization> agigaToks = AgigaConcreteAnnotator.convertTokenizations(agigaDoc, annotation, metadata,
+										     OutputLayers.ALL);
+	    EntityMentionSet.Builder agigaMentions = EntityMentionSet.newBuilder().setUuid(id());
+	    EntitySet.Builder agigaEntitySet = EntitySet.newBuilder().setUuid(id());
+	    for(AgigaCoref coref : agigaDoc.getCorefs())
+		agigaEntitySet.addEntity(AgigaConverter.convertCoref(agigaMentions, coref, agigaDoc, agigaToks));
+	    viaAgiga.add(agigaToks);
+	    viaAgigaEntities.add(entities(agigaToks, agigaMentions, agigaEntitySet));
+
+	    List<Tokenization> directToks = converter.convertSentences(annotation);
+	    EntityMentionSet.Builder directMentions = EntityMentionSet.newBuilder().setUuid(id());
+	    EntitySet.Builder directEntitySet = EntitySet.newBuilder().setUuid(id());
+	    converter.convertCoref(annotation, directToks, directMentions, directEntitySet);
+	    direct.add(directToks);
+	    directEntities.add(entities(directToks, directMentions, directEntitySet));
+	}
+	assertFalse("no aggregates in the sample", direct.isEmpty());
+    }
+
+    private static UUID id() {
+	return UUID.newBuilder().setHigh(0).setLow(0).build();
+    }
+
+    // each entity as its mentions' "sentence:tokens@anchor text", sorted
+    private static List<String> entities(List<Tokenization> toks, EntityMentionSet.Builder mentions,
+					 EntitySet.Builder entities) {
+	Map<UUID, Integer> sentence = new HashMap<UUID, Integer>();
+	for(int i = 0; i < toks.size(); i++)
+	    sentence.put(toks.get(i).getUuid(), i);
+	Map<UUID, String> mentionKey = new HashMap<UUID, String>();
+	for(EntityMention m : mentions.getMentionList())
+	    mentionKey.put(m.getUuid(), sentence.get(m.getTokens().getTokenizationId()) + ":"
+			   + m.getTokens().getTokenIdList() + "@" + m.getTokens().getAnchorTokenId()
+			   + " " + m.getText());
+	List<String> result = new ArrayList<String>();
+	for(Entity e : entities.getEntityList()) {
+	    List<String> keys = new ArrayList<String>();
+	    for(UUID m : e.getMentionList())
+		keys.add(mentionKey.get(m));
+	    Collections.sort(keys);
+	    result.add(keys.toString());
+	}
+	Collections.sort(result);
+	return result;
+    }
+
+    private static String tokens(Tokenization t) {
+	StringBuilder sb = new StringBuilder();
+	for(Token token : t.getTokenList())
+	    sb.append(token.getTokenId()).append(' ').append(token.getText()).append(' ')
+		.append(token.getTextSpan().getStart()).append('-').append(token.getTextSpan().getEnd()).append('\n');
+	return sb.toString();
+    }
+
+    private static String tags(List<TokenTagging> taggings) {
+	StringBuilder sb = new StringBuilder();
+	for(TokenTagging tagging : taggings)
+	    for(TaggedToken tag : tagging.getTaggedTokenList())
+		sb.append(tag.getTokenId()).append('/').append(tag.getTag()).append(' ');
+	return sb.toString();
+    }
+
+    private static String parse(Tokenization t) {
+	StringBuilder sb = new StringBuilder();
+	for(Parse parse : t.getParseList())
+	    for(Parse.Constituent c : parse.getConstituentList())
+		sb.append(c.getId()).append(' ').append(c.getTag()).append(' ').append(c.getChildList())
+		    .append(' ').append(c.getTokenSequence().getTokenIdList())
+		    .append(" head=").append(c.getHeadChildIndex()).append('\n');
+	return sb.toString();
+    }
+
+    private static String dependencies(DependencyParse deps) {
+	StringBuilder sb = new StringBuilder();
+	for(DependencyParse.Dependency d : deps.getDependencyList())
+	    sb.append(d.hasGov() ? d.getGov() : -1).append(' ').append(d.getDep())
+		.append(' ').append(d.getEdgeType()).append('\n');
+	return sb.toString();
+    }
+
+    @Test
+    public void sameSentences() {
+	for(int a = 0; a < direct.size(); a++)
+	    assertEquals("sentences of aggregate " + a, viaAgiga.get(a).size(), direct.get(a).size());
+    }
+
+    @Test
+    public void sameTokensAndTags() {
+	for(int a = 0; a < direct.size(); a++) {
+	    for(int s = 0; s < direct.get(a).size(); s++) {
+		Tokenization expected = viaAgiga.get(a).get(s);
+		Tokenization actual = direct.get(a).get(s);
+		String where = "aggregate " + a + ", sentence " + s;
+		assertEquals(where, tokens(expected), tokens(actual));
+		assertEquals(where, tags(expected.getPosTagsList()), tags(actual.getPosTagsList()));
+		assertEquals(where, tags(expected.getNerTagsList()), tags(actual.getNerTagsList()));
+		assertEquals(where, tags(expected.getLemmasList()), tags(actual.getLemmasList()));
+	    }
+	}
+    }
+
+    @Test
+    public void sameParses() {
+	for(int a = 0; a < direct.size(); a++) {
+	    for(int s = 0; s < direct.get(a).size(); s++) {
+		Tokenization expected = viaAgiga.get(a).get(s);
+		Tokenization actual = direct.get(a).get(s);
+		String where = "aggregate " + a + ", sentence " + s;
+		assertEquals(where, parse(expected), parse(actual));
+		assertEquals(where, 3, actual.getDependencyParseCount());
+		assertEquals(where, expected.getDependencyParseCount(), actual.getDependencyParseCount());
+		for(int d = 0; d < actual.getDependencyParseCount(); d++)
+		    assertEquals(where + ", dependency parse " + d,
+				 dependencies(expected.getDependencyParse(d)), dependencies(actual.getDependencyParse(d)));
+	    }
+	}
+    }
+
+    @Test
+    public void fallbackFlagged() {
+	String flag = "(parse fallback: " + FALLBACK + ")";
+	for(List<Tokenization> path : Arrays.asList(viaAgiga.get(0), direct.get(0))) {
+	    Tokenization fallback = path.get(0);
+	    assertTrue(fallback.getMetadata().getTool(), fallback.getMetadata().getTool().endsWith(flag));
+	    assertEquals(flag, 1, fallback.getParseCount());
+	    assertTrue(fallback.getParse(0).getMetadata().getTool().endsWith(flag));
+	    assertEquals(3, fallback.getDependencyParseCount());
+	    for(DependencyParse deps : fallback.getDependencyParseList()) {
+		assertTrue(deps.getMetadata().getTool().endsWith(flag));
+		assertEquals("no dependencies from a flat tree", 0, deps.getDependencyCount());
+	    }
+	    for(int s = 1; s < path.size(); s++)
+		assertEquals(metadata.getTool(), path.get(s).getMetadata().getTool());
+	}
+    }
+
+    @Test
+    public void sameEntities() {
+	for(int a = 0; a < direct.size(); a++)
+	    assertEquals("entities of aggregate " + a, viaAgigaEntities.get(a), directEntities.get(a));
+    }
+}